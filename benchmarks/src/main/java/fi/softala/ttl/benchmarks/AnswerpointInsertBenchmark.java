@@ -0,0 +1,92 @@
+package fi.softala.ttl.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import fi.softala.ttl.dao.MultiRowInserter;
+import fi.softala.ttl.dao.PassiDAOImpl;
+import fi.softala.ttl.model.Answerpoint;
+import fi.softala.ttl.model.Answersheet;
+
+/**
+ * PassiDAOImpl.saveAnswer with answerpoints written as a JDBC batch versus
+ * multi-row INSERTs, as answers per sheet grow. The database is reached over
+ * local TCP so each statement pays a round trip. Every save is rolled back,
+ * keeping table sizes constant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnswerpointInsertBenchmark {
+
+	@Param({ "1", "10", "50", "200" })
+	public int answerpoints;
+
+	@Param({ "batch", "multirow" })
+	public String insert;
+
+	private EmbeddedDatabase database;
+	private PassiDAOImpl dao;
+	private TransactionTemplate transaction;
+	private Answersheet answersheet;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		database = new EmbeddedDatabase("insert", true, 2);
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(database.getDataSource());
+		dao = new PassiDAOImpl();
+		dao.setJdbcTemplate(jdbcTemplate);
+		dao.setMultiRowInserter(new MultiRowInserter(jdbcTemplate, 100, "multirow".equals(insert)));
+		transaction = new TransactionTemplate(new DataSourceTransactionManager(database.getDataSource()));
+
+		// User jaapa (5) has not answered worksheet 7 in the dump
+		answersheet = new Answersheet();
+		answersheet.setWorksheetID(7);
+		answersheet.setGroupID(1);
+		answersheet.setUserID(5);
+		answersheet.setPlanning("Benchmark planning");
+		ArrayList<Answerpoint> points = new ArrayList<>();
+		for (int i = 0; i < answerpoints; i++) {
+			Answerpoint point = new Answerpoint();
+			point.setAnswerText("Benchmark answer " + i);
+			point.setWaypointID(13);
+			point.setOptionID(37);
+			points.add(point);
+		}
+		answersheet.setAnswerpoints(points);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.close();
+	}
+
+	@Benchmark
+	public boolean saveAnswer() {
+		return transaction.execute(status -> {
+			boolean saved = dao.saveAnswer(answersheet, "jaapa");
+			status.setRollbackOnly();
+			return saved;
+		});
+	}
+}
@@ -0,0 +1,127 @@
+package fi.softala.ttl.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import fi.softala.ttl.dao.MultiRowInserter;
+import fi.softala.ttl.dao.PassiDAOImpl;
+import fi.softala.ttl.metrics.InstrumentedDataSource;
+import fi.softala.ttl.metrics.RowCountingJdbcTemplate;
+import fi.softala.ttl.metrics.SqlMetrics;
+import fi.softala.ttl.model.Answerpoint;
+import fi.softala.ttl.model.Answersheet;
+import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.User;
+
+/**
+ * Read and write paths of PassiDAOImpl behind the most used endpoints, run
+ * for student jaapa (5) of group 1 in the dump. With tcp=true every query
+ * pays a local network round trip, so query count shows up in the score.
+ * instrumented=true adds the InstrumentedDataSource and RowCountingJdbcTemplate
+ * of passi-rest, to see what collecting SQL metrics costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+
+	private static final String USERNAME = "jaapa";
+	private static final int USER_ID = 5;
+	private static final int GROUP_ID = 1;
+
+	@Param({ "false", "true" })
+	public boolean tcp;
+
+	@Param({ "false", "true" })
+	public boolean instrumented;
+
+	private EmbeddedDatabase database;
+	private PassiDAOImpl dao;
+	private TransactionTemplate transaction;
+	private Answersheet answersheet;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		database = new EmbeddedDatabase("dao", tcp, 2);
+		SqlMetrics sqlMetrics = new SqlMetrics(60000, 200, 20, 200);
+		DataSource dataSource = instrumented
+				? new InstrumentedDataSource(database.getDataSource(), sqlMetrics)
+				: database.getDataSource();
+		JdbcTemplate jdbcTemplate = instrumented
+				? new RowCountingJdbcTemplate(dataSource, sqlMetrics)
+				: new JdbcTemplate(dataSource);
+		dao = new PassiDAOImpl();
+		dao.setJdbcTemplate(jdbcTemplate);
+		dao.setMultiRowInserter(new MultiRowInserter(jdbcTemplate, 100, false));
+		transaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+		// Worksheet 7 is not answered by jaapa in the dump, waypoint 13 belongs to it
+		answersheet = new Answersheet();
+		answersheet.setWorksheetID(7);
+		answersheet.setGroupID(GROUP_ID);
+		answersheet.setUserID(USER_ID);
+		answersheet.setPlanning("Benchmark planning");
+		ArrayList<Answerpoint> points = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Answerpoint point = new Answerpoint();
+			point.setAnswerText("Benchmark answer " + i);
+			point.setWaypointID(13);
+			point.setOptionID(37);
+			points.add(point);
+		}
+		answersheet.setAnswerpoints(points);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.close();
+	}
+
+	@Benchmark
+	public User findUser() {
+		return dao.findUser(USERNAME);
+	}
+
+	@Benchmark
+	public List<Category> getWorksheets() {
+		return dao.getWorksheets(GROUP_ID, USERNAME);
+	}
+
+	@Benchmark
+	public Answersheet getAnswer() {
+		return dao.getAnswer(5, GROUP_ID, USER_ID);
+	}
+
+	// Rolled back so that the same sheet can be saved on every invocation
+	@Benchmark
+	public boolean saveAnswer() {
+		return transaction.execute(status -> {
+			boolean saved = dao.saveAnswer(answersheet, USERNAME);
+			status.setRollbackOnly();
+			return saved;
+		});
+	}
+}
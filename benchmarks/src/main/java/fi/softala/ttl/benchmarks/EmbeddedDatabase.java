@@ -0,0 +1,201 @@
+package fi.softala.ttl.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.h2.tools.Server;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * H2 database in MySQL mode standing in for MariaDB, seeded from the
+ * production dump backup-24-11-2016.sql on the passi-rest classpath and
+ * brought up to date with the update-*.sql scripts next to it.
+ * 
+ * The database can be served over H2's TCP server, so that every statement
+ * costs a network round trip like against a real database server.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+
+	private static final String DUMP = "/backup-24-11-2016.sql";
+	// In the order they are run on the production database
+	private static final String[] UPDATES = { "/update-01-image-store.sql", "/update-02-answersheets-unique.sql",
+			"/update-03-progress.sql", "/update-04-image-owner.sql" };
+	private static final String MODE = ";MODE=MySQL;NON_KEYWORDS=GROUPS,VALUE;DB_CLOSE_DELAY=-1";
+
+	private final String name;
+	private final String url;
+	private final Server server;
+	private final HikariDataSource dataSource;
+
+	/**
+	 * Create and seed a new database.
+	 * 
+	 * @param name unique in-memory database name
+	 * @param tcp true to connect through a local TCP server
+	 * @param poolSize maximum connections in pool
+	 */
+	public EmbeddedDatabase(String name, boolean tcp, int poolSize) throws SQLException, IOException {
+		this.name = name;
+		if (tcp) {
+			server = Server.createTcpServer("-tcpPort", "0", "-ifNotExists").start();
+			url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/mem:" + name + MODE;
+		} else {
+			server = null;
+			url = "jdbc:h2:mem:" + name + MODE;
+		}
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("benchmark-" + name);
+		config.setJdbcUrl(url);
+		config.setUsername("sa");
+		config.setPassword("");
+		config.setMaximumPoolSize(poolSize);
+		config.setMinimumIdle(1);
+		dataSource = new HikariDataSource(config);
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			for (String sql : readScript(DUMP)) {
+				statement.execute(sql);
+			}
+			statement.execute(FEEDBACK_COMPLETE);
+			for (String update : UPDATES) {
+				for (String sql : readScript(update)) {
+					if (!isMySqlOnly(sql)) {
+						statement.execute(sql);
+					}
+				}
+			}
+			statement.execute(ProgressTrigger.CREATE);
+		}
+	}
+
+	// Production column added by the instructor application, not in the dump nor in the update scripts
+	private static final String FEEDBACK_COMPLETE = "ALTER TABLE answersheets ADD COLUMN feedback_complete TINYINT NOT NULL DEFAULT 0";
+
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * JDBC URL of the database. In-memory databases can be opened with it only
+	 * from the same JVM.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Drop the database, so that the name can be used again in this JVM, and
+	 * close the pool.
+	 */
+	@Override
+	public void close() {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not drop database " + name, e);
+		} finally {
+			dataSource.close();
+		}
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Read MariaDB script as H2 statements: session settings, locks, collations,
+	 * table options and foreign keys (the dump has orphan rows) are dropped and
+	 * MySQL string escapes are rewritten.
+	 */
+	static List<String> readScript(String resource) throws IOException {
+		List<String> statements = new ArrayList<>();
+		InputStream in = EmbeddedDatabase.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException(resource + " not found on classpath");
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			StringBuilder statement = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("--") || trimmed.startsWith("/*!")
+						|| trimmed.startsWith("LOCK TABLES") || trimmed.startsWith("UNLOCK TABLES")
+						|| trimmed.startsWith("CONSTRAINT ")) {
+					continue;
+				}
+				if (trimmed.startsWith(") ENGINE=")) {
+					line = ");";
+				}
+				statement.append(line.replaceAll(" COLLATE [A-Za-z0-9_]+", "")).append('\n');
+				if (line.endsWith(";")) {
+					String sql = statement.toString().trim();
+					sql = sql.substring(0, sql.length() - 1).replaceAll(",\\s*\\n\\)$", "\n)");
+					statements.add(sql.startsWith("INSERT") ? unescape(sql) : sql);
+					statement.setLength(0);
+				}
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Statements of the update scripts H2 cannot run: triggers (Java classes
+	 * in H2, see ProgressTrigger), session variables, and multi-table DELETE /
+	 * UPDATE repairing production data, which the dump does not need.
+	 */
+	private static boolean isMySqlOnly(String sql) {
+		String upper = sql.toUpperCase();
+		return upper.startsWith("SET ") || upper.startsWith("CREATE TRIGGER") || upper.startsWith("DROP TRIGGER")
+				|| upper.matches("(?s)^DELETE \\S+ FROM .*") || upper.matches("(?s)^UPDATE \\S+\\s+JOIN .*");
+	}
+
+	// MySQL backslash escapes inside string literals to standard SQL
+	private static String unescape(String sql) {
+		StringBuilder out = new StringBuilder(sql.length());
+		boolean quoted = false;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (quoted && c == '\\' && i + 1 < sql.length()) {
+				char next = sql.charAt(++i);
+				switch (next) {
+				case '\'':
+					out.append("''");
+					break;
+				case 'n':
+					out.append('\n');
+					break;
+				case 'r':
+					out.append('\r');
+					break;
+				case 't':
+					out.append('\t');
+					break;
+				case '0':
+					break;
+				default:
+					out.append(next);
+				}
+				continue;
+			}
+			if (c == '\'') {
+				quoted = !quoted;
+			}
+			out.append(c);
+		}
+		return out.toString();
+	}
+}
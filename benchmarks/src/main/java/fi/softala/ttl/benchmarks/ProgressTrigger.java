@@ -0,0 +1,45 @@
+package fi.softala.ttl.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.h2.tools.TriggerAdapter;
+
+/**
+ * H2 version of the answersheets_progress_insert, _update and _delete
+ * triggers of update-03-progress.sql, keeping one progress row per
+ * answersheet. A NULL feedback_complete is stored as 0.
+ */
+public class ProgressTrigger extends TriggerAdapter {
+
+	static final String CREATE = "CREATE TRIGGER answersheets_progress AFTER INSERT, UPDATE, DELETE ON answersheets "
+			+ "FOR EACH ROW CALL \"" + ProgressTrigger.class.getName() + "\"";
+
+	private static final String INSERT = "MERGE INTO progress (user_id, group_id, worksheet_id, feedback_complete) "
+			+ "KEY (user_id, group_id, worksheet_id) VALUES (?, ?, ?, ?)";
+	private static final String DELETE = "DELETE FROM progress WHERE user_id = ? AND group_id = ? AND worksheet_id = ?";
+
+	@Override
+	public void fire(Connection connection, ResultSet oldRow, ResultSet newRow) throws SQLException {
+		if (oldRow != null) {
+			try (PreparedStatement statement = connection.prepareStatement(DELETE)) {
+				statement.setInt(1, oldRow.getInt("user_id"));
+				statement.setInt(2, oldRow.getInt("group_id"));
+				statement.setInt(3, oldRow.getInt("worksheet_id"));
+				statement.executeUpdate();
+			}
+		}
+		if (newRow != null) {
+			try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+				statement.setInt(1, newRow.getInt("user_id"));
+				statement.setInt(2, newRow.getInt("group_id"));
+				statement.setInt(3, newRow.getInt("worksheet_id"));
+				// getInt() reads NULL as 0
+				statement.setInt(4, newRow.getInt("feedback_complete"));
+				statement.executeUpdate();
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package fi.softala.ttl.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.softala.ttl.dao.PassiDAOImpl;
+import fi.softala.ttl.model.Answersheet;
+import fi.softala.ttl.model.Category;
+
+/**
+ * Jackson serialisation of the /worksheet and /answer response bodies, and
+ * deserialisation of the category tree from its JSON. The objects are loaded
+ * once from the dump and the mapper is configured the same way as the one
+ * Spring MVC creates for its message converter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	private ObjectMapper mapper;
+	private List<Category> categories;
+	private byte[] categoryJson;
+	private Answersheet answersheet;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mapper = Jackson2ObjectMapperBuilder.json().build();
+		try (EmbeddedDatabase database = new EmbeddedDatabase("serialization", false, 1)) {
+			PassiDAOImpl dao = new PassiDAOImpl();
+			dao.setJdbcTemplate(new JdbcTemplate(database.getDataSource()));
+			categories = dao.getWorksheets(1, "jaapa");
+			answersheet = dao.getAnswer(5, 1, 5);
+		}
+		categoryJson = mapper.writeValueAsBytes(categories);
+	}
+
+	@Benchmark
+	public byte[] categoryTree() throws Exception {
+		return mapper.writeValueAsBytes(categories);
+	}
+
+	@Benchmark
+	public byte[] answersheet() throws Exception {
+		return mapper.writeValueAsBytes(answersheet);
+	}
+
+	@Benchmark
+	public List<Category> readCategoryTree() throws Exception {
+		return mapper.readValue(categoryJson,
+				mapper.getTypeFactory().constructCollectionType(List.class, Category.class));
+	}
+}
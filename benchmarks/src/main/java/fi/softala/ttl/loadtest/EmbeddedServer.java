@@ -0,0 +1,74 @@
+package fi.softala.ttl.loadtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.coyote.AbstractProtocol;
+import org.springframework.web.SpringServletContainerInitializer;
+
+import fi.softala.ttl.configuration.ApplicationInitializer;
+import fi.softala.ttl.configuration.VirtualThreadTaskExecutor;
+import fi.softala.ttl.security.SecurityWebApplicationInitializer;
+
+/**
+ * passi-rest in an embedded Tomcat on a free local port. The application is
+ * started through the same WebApplicationInitializers as in the war, so the
+ * security filter chain and CORS filter are included.
+ */
+public class EmbeddedServer implements AutoCloseable {
+
+	private static final String CONTEXT_PATH = "/passi-rest";
+
+	private final Tomcat tomcat;
+	private ExecutorService virtualThreads;
+
+	/**
+	 * @param baseDir Tomcat working directory
+	 * @param maxThreads request processing threads
+	 * @param virtualThreads true to process requests on virtual threads,
+	 * maxThreads is then ignored
+	 */
+	public EmbeddedServer(File baseDir, int maxThreads, boolean virtualThreads) throws LifecycleException {
+		tomcat = new Tomcat();
+		tomcat.setBaseDir(baseDir.getAbsolutePath());
+		tomcat.setPort(0);
+		tomcat.getConnector().setProperty("maxThreads", String.valueOf(maxThreads));
+		if (virtualThreads) {
+			this.virtualThreads = VirtualThreadTaskExecutor.newExecutorService("http-virtual-");
+			((AbstractProtocol<?>) tomcat.getConnector().getProtocolHandler()).setExecutor(this.virtualThreads);
+		}
+		File docBase = new File(baseDir, "webapp");
+		docBase.mkdirs();
+		Context context = tomcat.addContext(CONTEXT_PATH, docBase.getAbsolutePath());
+		context.addServletContainerInitializer(new SpringServletContainerInitializer(), new HashSet<Class<?>>(
+				Arrays.asList(ApplicationInitializer.class, SecurityWebApplicationInitializer.class)));
+		tomcat.start();
+		if (context.getState() != LifecycleState.STARTED) {
+			close();
+			throw new IllegalStateException("passi-rest failed to start, see the log above");
+		}
+	}
+
+	/**
+	 * @return service root without trailing slash, e.g.
+	 * http://localhost:54321/passi-rest
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + tomcat.getConnector().getLocalPort() + CONTEXT_PATH;
+	}
+
+	@Override
+	public void close() throws LifecycleException {
+		tomcat.stop();
+		tomcat.destroy();
+		if (virtualThreads != null) {
+			virtualThreads.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package fi.softala.ttl.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency histogram and error count of one endpoint. Recording is thread
+ * safe; interval() hands over everything recorded since the previous call,
+ * which is how the warmup is discarded.
+ */
+public class EndpointStats {
+
+	// Microseconds, up to one minute with three significant digits
+	private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private final String name;
+	private final Recorder recorder = new Recorder(HIGHEST_MICROS, 3);
+	private final LongAdder errors = new LongAdder();
+
+	private Histogram histogram;
+	private long errorCount;
+
+	public EndpointStats(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param startNanos System.nanoTime() before the request
+	 * @param error true if the request failed or got an error status
+	 */
+	public void record(long startNanos, boolean error) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+		recorder.recordValue(Math.min(micros, HIGHEST_MICROS));
+		if (error) {
+			errors.increment();
+		}
+	}
+
+	/**
+	 * Take the interval recorded since the previous call, replacing the
+	 * histogram and error count reported by the getters.
+	 */
+	public void interval() {
+		histogram = recorder.getIntervalHistogram(histogram);
+		errorCount = errors.sumThenReset();
+	}
+
+	public Histogram getHistogram() {
+		return histogram;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+}
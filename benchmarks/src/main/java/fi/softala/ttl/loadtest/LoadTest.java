@@ -0,0 +1,429 @@
+package fi.softala.ttl.loadtest;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.HdrHistogram.Histogram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.configuration.VirtualThreadTaskExecutor;
+import fi.softala.ttl.loadtest.SyntheticDataset.Sheet;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+import fi.softala.ttl.model.Answerpoint;
+import fi.softala.ttl.model.Answersheet;
+
+/**
+ * End-to-end load test: passi-rest in embedded Tomcat on an H2 database seeded
+ * from the dump plus a synthetic classroom, driven over HTTP by concurrent
+ * simulated mobile clients. Runs offline.
+ *
+ * Every client thread plays one student at a time. A session is the app
+ * start (user, worksheets with the ETag of the previous session, progress,
+ * feedback map) followed by a number of actions picked by weight: read an
+ * answer, save an answer or upload a photo. All threads start at once, like
+ * a class logging in at the start of a lesson. Think time is zero unless
+ * set, so by default the service runs at its maximum throughput.
+ *
+ * With --virtualThreads=true Tomcat and passi-rest (async.virtualThreads)
+ * process requests on virtual threads; compare the two modes with many
+ * mostly idle clients, e.g. --groups=70 --threads=2000 --thinkMs=1000.
+ * Clients run on virtual threads whenever the runtime has them, so the
+ * reported peak thread count is that of the server. Virtual threads need
+ * Java 21.
+ *
+ * Options are given as --name=value, see DEFAULTS. passi-rest settings from
+ * data.properties can be overridden with -D, e.g.
+ * -Ddb.pool.maximumPoolSize=20. On Java 9 and later Spring 4 needs
+ * --add-opens java.base/java.lang=ALL-UNNAMED.
+ */
+public class LoadTest {
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("groups", "10"); // synthetic groups
+		DEFAULTS.put("students", "30"); // students per group
+		DEFAULTS.put("worksheets", "20"); // worksheets per group
+		DEFAULTS.put("waypoints", "5"); // waypoints per worksheet
+		DEFAULTS.put("options", "3"); // options per waypoint
+		DEFAULTS.put("answered", "0.5"); // fraction of worksheets answered before the test
+		DEFAULTS.put("seed", "42");
+		DEFAULTS.put("threads", "50"); // concurrent clients
+		DEFAULTS.put("serverThreads", "200"); // Tomcat request threads
+		DEFAULTS.put("virtualThreads", "false"); // requests on virtual threads
+		DEFAULTS.put("actions", "5"); // actions per session after app start
+		DEFAULTS.put("thinkMs", "0"); // pause between requests of a client
+		DEFAULTS.put("warmup", "10"); // seconds, not reported
+		DEFAULTS.put("duration", "30"); // seconds, reported
+		DEFAULTS.put("auth", "basic"); // basic, or token from /login/
+	}
+
+	// Action weights after app start, in percent
+	private static final int GET_ANSWER_WEIGHT = 50;
+	private static final int SAVE_ANSWER_WEIGHT = 30;
+
+	private static final int IMAGES = 4;
+
+	private final Map<String, String> options;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+	private final ConcurrentLinkedQueue<Student> idleStudents = new ConcurrentLinkedQueue<>();
+	private final List<Sheet> sheets;
+	private final List<byte[]> images = new ArrayList<>();
+	private final String baseUrl;
+	private final boolean tokenAuth;
+	private final int actions;
+	private final long thinkMillis;
+
+	private volatile boolean running = true;
+
+	LoadTest(Map<String, String> options, SyntheticDataset dataset, String baseUrl) throws IOException {
+		this.options = options;
+		this.baseUrl = baseUrl;
+		this.sheets = dataset.getSheets();
+		this.idleStudents.addAll(dataset.getStudents());
+		this.tokenAuth = "token".equals(options.get("auth"));
+		this.actions = intOption("actions");
+		this.thinkMillis = intOption("thinkMs");
+		for (String name : new String[] { "POST /login", "GET /user", "GET /worksheet", "GET /progress",
+				"GET /feedbackmap", "GET /answer", "POST /answer", "POST /upload" }) {
+			stats.put(name, new EndpointStats(name));
+		}
+		Random random = new Random(Long.parseLong(options.get("seed")));
+		for (int i = 0; i < IMAGES; i++) {
+			images.add(jpeg(random, 1024, 768));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			String name = separator > 2 && arg.startsWith("--") ? arg.substring(2, separator) : null;
+			if (name == null || !DEFAULTS.containsKey(name)) {
+				System.err.println("Unknown option " + arg + ", options and defaults: " + DEFAULTS);
+				System.exit(2);
+			}
+			options.put(name, arg.substring(separator + 1));
+		}
+		Path workDir = Files.createTempDirectory("passi-loadtest");
+		try (EmbeddedDatabase database = new EmbeddedDatabase("loadtest", false, 2)) {
+			SyntheticDataset dataset = new SyntheticDataset(Integer.parseInt(options.get("groups")),
+					Integer.parseInt(options.get("students")), Integer.parseInt(options.get("worksheets")),
+					Integer.parseInt(options.get("waypoints")), Integer.parseInt(options.get("options")),
+					Double.parseDouble(options.get("answered")), Long.parseLong(options.get("seed")));
+			long start = System.nanoTime();
+			dataset.insert(database.getDataSource());
+			System.out.printf("Dataset: %d students, %d worksheets, inserted in %d ms%n",
+					dataset.getStudents().size(), dataset.getSheets().size(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			// System properties take precedence over data.properties
+			System.setProperty("db.url", database.getUrl());
+			System.setProperty("images.path", workDir.resolve("images").toString());
+			boolean virtualThreads = Boolean.parseBoolean(options.get("virtualThreads"));
+			System.setProperty("async.virtualThreads", String.valueOf(virtualThreads));
+			// Every client keeps its connection open between requests, like the app
+			if (System.getProperty("http.maxConnections") == null) {
+				System.setProperty("http.maxConnections", options.get("threads"));
+			}
+			try (EmbeddedServer server = new EmbeddedServer(workDir.resolve("tomcat").toFile(),
+					Integer.parseInt(options.get("serverThreads")), virtualThreads)) {
+				System.out.println("Server: " + server.getBaseUrl());
+				new LoadTest(options, dataset, server.getBaseUrl()).run();
+			}
+		} finally {
+			try (Stream<Path> paths = Files.walk(workDir)) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	void run() throws InterruptedException {
+		int threads = intOption("threads");
+		if (threads > idleStudents.size()) {
+			throw new IllegalArgumentException("More threads than students: " + threads + " > " + idleStudents.size());
+		}
+		CountDownLatch go = new CountDownLatch(1);
+		boolean virtualClients = VirtualThreadTaskExecutor.isSupported();
+		ExecutorService clients = virtualClients ? VirtualThreadTaskExecutor.newExecutorService("client-") : null;
+		List<Thread> platformClients = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Runnable client = () -> {
+				try {
+					go.await();
+					while (running) {
+						session();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			};
+			if (virtualClients) {
+				clients.execute(client);
+			} else {
+				Thread thread = new Thread(client, "client-" + i);
+				thread.start();
+				platformClients.add(thread);
+			}
+		}
+		System.out.printf("Running %d clients: %s s warmup, %s s measured%n", threads, options.get("warmup"),
+				options.get("duration"));
+		go.countDown();
+		TimeUnit.SECONDS.sleep(intOption("warmup"));
+		stats.values().forEach(EndpointStats::interval);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		long start = System.nanoTime();
+		TimeUnit.SECONDS.sleep(intOption("duration"));
+		running = false;
+		stats.values().forEach(EndpointStats::interval);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int peakThreads = threadBean.getPeakThreadCount();
+		if (virtualClients) {
+			clients.shutdown();
+			clients.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		for (Thread client : platformClients) {
+			client.join();
+		}
+		report(seconds);
+		// Virtual threads are not counted, platform client threads are
+		System.out.printf("%nPeak platform threads: %d%s%n", peakThreads,
+				virtualClients ? "" : " (" + threads + " of them clients)");
+	}
+
+	// One student from app start to the last action
+	private void session() throws InterruptedException {
+		Student student = idleStudents.poll();
+		if (student == null) {
+			Thread.sleep(1);
+			return;
+		}
+		try {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			String authorization = authorization(student);
+			if (authorization == null) {
+				return;
+			}
+			get("GET /user", "/user/" + student.username, authorization, student);
+			get("GET /worksheet", "/worksheet/" + student.groupID, authorization, student);
+			get("GET /progress", "/progress/", authorization, student);
+			get("GET /feedbackmap", "/feedbackmap/" + student.groupID + "/" + student.userID, authorization, student);
+			for (int i = 0; i < actions && running; i++) {
+				int action = random.nextInt(100);
+				if (action < GET_ANSWER_WEIGHT && !student.answered.isEmpty()) {
+					int worksheetID = student.answered.get(random.nextInt(student.answered.size()));
+					get("GET /answer", "/answer/" + worksheetID + "/" + student.groupID + "/" + student.userID,
+							authorization, student);
+				} else if (action < GET_ANSWER_WEIGHT + SAVE_ANSWER_WEIGHT && !student.unanswered.isEmpty()) {
+					saveAnswer(student, authorization, random);
+				} else {
+					Sheet sheet = sheets.get(random.nextInt(sheets.size()));
+					send("POST /upload", "/upload/" + sheet.waypointIDs[0] + "-" + student.userID, authorization,
+							"image/jpeg", images.get(random.nextInt(images.size())));
+				}
+			}
+		} finally {
+			idleStudents.add(student);
+		}
+	}
+
+	private String authorization(Student student) throws InterruptedException {
+		String basic = "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8));
+		if (!tokenAuth) {
+			return basic;
+		}
+		Response response = send("POST /login", "/login/", basic, null, null);
+		if (response.status != HttpURLConnection.HTTP_OK) {
+			return null;
+		}
+		try {
+			return "Bearer " + mapper.readTree(response.body).get("token").asText();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void saveAnswer(Student student, String authorization, ThreadLocalRandom random)
+			throws InterruptedException {
+		Sheet sheet = student.unanswered.peek();
+		Answersheet answersheet = new Answersheet();
+		answersheet.setWorksheetID(sheet.worksheetID);
+		answersheet.setGroupID(student.groupID);
+		answersheet.setUserID(student.userID);
+		answersheet.setPlanning("Load test planning");
+		ArrayList<Answerpoint> answerpoints = new ArrayList<>();
+		for (int p = 0; p < sheet.waypointIDs.length; p++) {
+			Answerpoint answerpoint = new Answerpoint();
+			answerpoint.setAnswerText("Load test answer " + (p + 1));
+			answerpoint.setWaypointID(sheet.waypointIDs[p]);
+			answerpoint.setOptionID(sheet.optionIDs[p][random.nextInt(sheet.optionIDs[p].length)]);
+			if (p == 0) {
+				answerpoint.setImageURL(sheet.waypointIDs[p] + "-" + student.userID + ".jpg");
+			}
+			answerpoints.add(answerpoint);
+		}
+		answersheet.setAnswerpoints(answerpoints);
+		byte[] body;
+		try {
+			body = mapper.writeValueAsBytes(answersheet);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (send("POST /answer", "/answer/", authorization, "application/json", body).status == HttpURLConnection.HTTP_CREATED) {
+			student.unanswered.poll();
+			student.answered.add(sheet.worksheetID);
+		}
+	}
+
+	// GET with If-None-Match for worksheets, as the app caches them between starts
+	private void get(String name, String path, String authorization, Student student) throws InterruptedException {
+		boolean worksheets = name.equals("GET /worksheet");
+		Response response = request(name, "GET", path, authorization, null, null,
+				worksheets ? student.worksheetsETag : null);
+		if (worksheets && response.eTag != null) {
+			student.worksheetsETag = response.eTag;
+		}
+	}
+
+	private Response send(String name, String path, String authorization, String contentType, byte[] body)
+			throws InterruptedException {
+		return request(name, "POST", path, authorization, contentType, body, null);
+	}
+
+	private Response request(String name, String method, String path, String authorization, String contentType,
+			byte[] body, String ifNoneMatch) throws InterruptedException {
+		if (thinkMillis > 0) {
+			Thread.sleep(thinkMillis);
+		}
+		Response response = new Response();
+		long start = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+			connection.setRequestMethod(method);
+			connection.setRequestProperty("Authorization", authorization);
+			if (ifNoneMatch != null) {
+				connection.setRequestProperty("If-None-Match", ifNoneMatch);
+			}
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", contentType);
+				connection.setFixedLengthStreamingMode(body.length);
+				try (OutputStream out = connection.getOutputStream()) {
+					out.write(body);
+				}
+			}
+			response.status = connection.getResponseCode();
+			response.eTag = connection.getHeaderField("ETag");
+			// Reading the body to the end keeps the connection alive for reuse
+			InputStream in = response.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (in != null) {
+				try (InputStream stream = in) {
+					response.body = readAll(stream);
+				}
+			}
+		} catch (IOException e) {
+			response.status = -1;
+		}
+		stats.get(name).record(start, response.status < 0 || response.status >= 400);
+		return response;
+	}
+
+	private void report(double seconds) {
+		System.out.printf("%n%-18s %9s %7s %9s %9s %9s %9s %9s%n", "Endpoint", "Requests", "Errors", "Req/s",
+				"p50 ms", "p99 ms", "p99.9 ms", "Max ms");
+		Histogram total = null;
+		long totalErrors = 0;
+		for (EndpointStats endpoint : stats.values()) {
+			Histogram histogram = endpoint.getHistogram();
+			if (histogram.getTotalCount() == 0) {
+				continue;
+			}
+			line(endpoint.getName(), histogram, endpoint.getErrorCount(), seconds);
+			if (total == null) {
+				total = histogram.copy();
+			} else {
+				total.add(histogram);
+			}
+			totalErrors += endpoint.getErrorCount();
+		}
+		if (total != null) {
+			line("Total", total, totalErrors, seconds);
+		}
+	}
+
+	private static void line(String name, Histogram histogram, long errors, double seconds) {
+		System.out.printf("%-18s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getTotalCount(), errors,
+				histogram.getTotalCount() / seconds, histogram.getValueAtPercentile(50) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getMaxValue() / 1000.0);
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	// Photo sized JPEG of random blocks, compresses roughly like a camera picture
+	private static byte[] jpeg(Random random, int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		for (int y = 0; y < height; y += 16) {
+			for (int x = 0; x < width; x += 16) {
+				graphics.setColor(new Color(random.nextInt(0x1000000)));
+				graphics.fillRect(x, y, 16, 16);
+			}
+		}
+		graphics.dispose();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	private static class Response {
+		int status;
+		String eTag;
+		byte[] body;
+	}
+}
@@ -0,0 +1,254 @@
+package fi.softala.ttl.loadtest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Synthetic classroom on top of the schema of the dump: groups of students
+ * with one instructor each, worksheets with waypoints and options shared by
+ * every group, and a seeded fraction of them already answered. The same seed
+ * always gives the same data.
+ *
+ * Rows get ids from ID_BASE up, so they do not collide with the dump.
+ */
+public class SyntheticDataset {
+
+	public static final String PASSWORD = "passi";
+
+	private static final int ID_BASE = 10000;
+	private static final int CATEGORIES = 4;
+	private static final int BATCH_SIZE = 500;
+
+	private final int groups;
+	private final int studentsPerGroup;
+	private final int worksheets;
+	private final int waypoints;
+	private final int options;
+	private final double answered;
+	private final long seed;
+
+	private final List<Student> students = new ArrayList<>();
+	private final List<Sheet> sheets = new ArrayList<>();
+
+	/**
+	 * @param groups number of groups
+	 * @param studentsPerGroup students in each group
+	 * @param worksheets worksheets distributed to every group
+	 * @param waypoints waypoints per worksheet
+	 * @param options options per waypoint
+	 * @param answered fraction of worksheets each student has answered, 0-1
+	 * @param seed random seed
+	 */
+	public SyntheticDataset(int groups, int studentsPerGroup, int worksheets, int waypoints, int options,
+			double answered, long seed) {
+		this.groups = groups;
+		this.studentsPerGroup = studentsPerGroup;
+		this.worksheets = worksheets;
+		this.waypoints = waypoints;
+		this.options = options;
+		this.answered = answered;
+		this.seed = seed;
+	}
+
+	/**
+	 * Insert the dataset. Every student has the password PASSWORD; it is hashed
+	 * once and the hash shared, BCrypt per row would dominate the setup time.
+	 */
+	public void insert(DataSource dataSource) {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		Random random = new Random(seed);
+		String password = new BCryptPasswordEncoder().encode(PASSWORD);
+
+		Rows rows = new Rows(jdbcTemplate, "INSERT INTO categories (category_id, category_name) VALUES (?, ?)");
+		for (int c = 0; c < CATEGORIES; c++) {
+			rows.add(ID_BASE + c, "Synthetic category " + (c + 1));
+		}
+		rows.flush();
+
+		Rows worksheetRows = new Rows(jdbcTemplate,
+				"INSERT INTO worksheets (worksheet_id, category_id, header, preface, planning) VALUES (?, ?, ?, ?, ?)");
+		Rows waypointRows = new Rows(jdbcTemplate,
+				"INSERT INTO waypoints (waypoint_id, task, photo_enabled, worksheet_id) VALUES (?, ?, ?, ?)");
+		Rows optionRows = new Rows(jdbcTemplate,
+				"INSERT INTO options (option_id, option_text, waypoint_id) VALUES (?, ?, ?)");
+		for (int w = 0; w < worksheets; w++) {
+			int worksheetID = ID_BASE + w;
+			worksheetRows.add(worksheetID, ID_BASE + w % CATEGORIES, "Worksheet " + (w + 1),
+					text(random, 300), text(random, 200));
+			Sheet sheet = new Sheet(worksheetID, waypoints, options);
+			for (int p = 0; p < waypoints; p++) {
+				int waypointID = ID_BASE + w * waypoints + p;
+				sheet.waypointIDs[p] = waypointID;
+				waypointRows.add(waypointID, text(random, 150), p == 0 ? 1 : 0, worksheetID);
+				for (int o = 0; o < options; o++) {
+					int optionID = ID_BASE + (w * waypoints + p) * options + o;
+					sheet.optionIDs[p][o] = optionID;
+					optionRows.add(optionID, "Option " + (o + 1), waypointID);
+				}
+			}
+			sheets.add(sheet);
+		}
+		worksheetRows.flush();
+		waypointRows.flush();
+		optionRows.flush();
+
+		Rows groupRows = new Rows(jdbcTemplate, "INSERT INTO groups (group_id, group_name, group_key) VALUES (?, ?, ?)");
+		Rows userRows = new Rows(jdbcTemplate,
+				"INSERT INTO users (user_id, username, password, firstname, lastname, email) VALUES (?, ?, ?, ?, ?, ?)");
+		Rows roleRows = new Rows(jdbcTemplate, "INSERT INTO user_role (user_id, role_id) VALUES (?, ?)");
+		Rows memberRows = new Rows(jdbcTemplate, "INSERT INTO members (user_id, group_id) VALUES (?, ?)");
+		Rows distroRows = new Rows(jdbcTemplate, "INSERT INTO distros (group_id, worksheet_id) VALUES (?, ?)");
+		for (int g = 0; g < groups; g++) {
+			int groupID = ID_BASE + g;
+			groupRows.add(groupID, "Synthetic group " + (g + 1), "load" + (g + 1));
+			for (Sheet sheet : sheets) {
+				distroRows.add(groupID, sheet.worksheetID);
+			}
+			// Instructors first, students after all instructors
+			int instructorID = ID_BASE + g;
+			userRows.add(instructorID, "lt" + (g + 1), password, "Instructor", "Group " + (g + 1),
+					"lt" + (g + 1) + "@passi.invalid");
+			roleRows.add(instructorID, 2);
+			memberRows.add(instructorID, groupID);
+			for (int s = 0; s < studentsPerGroup; s++) {
+				int userID = ID_BASE + groups + g * studentsPerGroup + s;
+				String username = "lt" + (g + 1) + "s" + (s + 1);
+				userRows.add(userID, username, password, "Student", String.valueOf(s + 1),
+						username + "@passi.invalid");
+				roleRows.add(userID, 1);
+				memberRows.add(userID, groupID);
+				students.add(new Student(userID, username, groupID));
+			}
+		}
+		groupRows.flush();
+		userRows.flush();
+		roleRows.flush();
+		memberRows.flush();
+		distroRows.flush();
+
+		Rows answersheetRows = new Rows(jdbcTemplate,
+				"INSERT INTO answersheets (answersheet_id, planning, instructor_comment, worksheet_id, group_id, user_id, feedback_complete) "
+						+ "VALUES (?, ?, ?, ?, ?, ?, ?)");
+		Rows answerpointRows = new Rows(jdbcTemplate,
+				"INSERT INTO answerpoints (answer_text, instructor_comment, instructor_rating, image_url, answersheet_id, waypoint_id, option_id) "
+						+ "VALUES (?, ?, ?, ?, ?, ?, ?)");
+		int answersheetID = ID_BASE;
+		for (Student student : students) {
+			List<Sheet> order = new ArrayList<>(sheets);
+			Collections.shuffle(order, random);
+			int done = (int) Math.round(order.size() * answered);
+			for (int i = 0; i < order.size(); i++) {
+				Sheet sheet = order.get(i);
+				if (i >= done) {
+					student.unanswered.add(sheet);
+					continue;
+				}
+				boolean feedback = random.nextBoolean();
+				answersheetRows.add(answersheetID, text(random, 200), feedback ? text(random, 100) : null,
+						sheet.worksheetID, student.groupID, student.userID, feedback ? 1 : 0);
+				for (int p = 0; p < waypoints; p++) {
+					answerpointRows.add(text(random, 120), feedback ? text(random, 60) : "", feedback ? 1 + random.nextInt(3) : 0,
+							p == 0 ? sheet.waypointIDs[p] + "-" + student.userID + ".jpg" : null, answersheetID,
+							sheet.waypointIDs[p], sheet.optionIDs[p][random.nextInt(options)]);
+				}
+				student.answered.add(sheet.worksheetID);
+				answersheetID++;
+			}
+		}
+		answersheetRows.flush();
+		answerpointRows.flush();
+	}
+
+	public List<Student> getStudents() {
+		return students;
+	}
+
+	public List<Sheet> getSheets() {
+		return sheets;
+	}
+
+	private static final String WORDS = "työ turva kypärä suojain kone nosto tikkaat melu pöly kemikaali ergonomia "
+			+ "tauko riski ohje vaara sähkö putoaminen liukastuminen valaistus järjestys";
+
+	private static final String[] WORD_LIST = WORDS.split(" ");
+
+	// Finnish looking filler of about the given length
+	private static String text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length + 16);
+		while (text.length() < length) {
+			text.append(WORD_LIST[random.nextInt(WORD_LIST.length)]).append(' ');
+		}
+		return text.toString().trim();
+	}
+
+	/**
+	 * Student and the worksheets left to answer during the load test.
+	 */
+	public static class Student {
+
+		final int userID;
+		final String username;
+		final int groupID;
+		final List<Integer> answered = new ArrayList<>();
+		final Deque<Sheet> unanswered = new ArrayDeque<>();
+		String worksheetsETag;
+
+		Student(int userID, String username, int groupID) {
+			this.userID = userID;
+			this.username = username;
+			this.groupID = groupID;
+		}
+	}
+
+	/**
+	 * Waypoint and option ids of a worksheet, for building answers.
+	 */
+	public static class Sheet {
+
+		final int worksheetID;
+		final int[] waypointIDs;
+		final int[][] optionIDs;
+
+		Sheet(int worksheetID, int waypoints, int options) {
+			this.worksheetID = worksheetID;
+			this.waypointIDs = new int[waypoints];
+			this.optionIDs = new int[waypoints][options];
+		}
+	}
+
+	// Batched inserts of one statement
+	private static class Rows {
+
+		private final JdbcTemplate jdbcTemplate;
+		private final String sql;
+		private final List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+
+		Rows(JdbcTemplate jdbcTemplate, String sql) {
+			this.jdbcTemplate = jdbcTemplate;
+			this.sql = sql;
+		}
+
+		void add(Object... row) {
+			rows.add(row);
+			if (rows.size() == BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (!rows.isEmpty()) {
+				jdbcTemplate.batchUpdate(sql, rows);
+				rows.clear();
+			}
+		}
+	}
+}
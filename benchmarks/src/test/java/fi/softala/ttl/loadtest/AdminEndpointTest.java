@@ -0,0 +1,117 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+import fi.softala.ttl.security.AdminSecret;
+
+/**
+ * /metrics/ and /update-worksheets/ against passi-rest in embedded Tomcat:
+ * a local request needs the admin secret, student credentials are not enough.
+ * Rows read by queries show up in the SQL metrics.
+ */
+public class AdminEndpointTest {
+
+	private static final String SECRET = "admin-endpoint-test";
+
+	private static Path workDir;
+	private static EmbeddedDatabase database;
+	private static EmbeddedServer server;
+	private static Student student;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		workDir = Files.createTempDirectory("passi-test");
+		database = new EmbeddedDatabase("adminendpoint", false, 2);
+		SyntheticDataset dataset = new SyntheticDataset(1, 2, 2, 1, 2, 0.5, 42);
+		dataset.insert(database.getDataSource());
+		student = dataset.getStudents().get(0);
+		System.setProperty("db.url", database.getUrl());
+		System.setProperty("images.path", workDir.resolve("images").toString());
+		System.setProperty("admin.secret", SECRET);
+		server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		System.clearProperty("admin.secret");
+		if (server != null) {
+			server.close();
+		}
+		if (database != null) {
+			database.close();
+		}
+		try (Stream<Path> paths = Files.walk(workDir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void secretOpensAdminEndpoints() throws IOException {
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/metrics/prometheus", AdminSecret.HEADER, SECRET));
+		assertEquals(HttpURLConnection.HTTP_OK,
+				request("POST", "/update-worksheets/" + student.groupID, AdminSecret.HEADER, SECRET));
+	}
+
+	@Test
+	public void localAddressAloneIsRejected() throws IOException {
+		assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, request("GET", "/metrics/prometheus", null, null));
+		assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED,
+				request("POST", "/update-worksheets/" + student.groupID, AdminSecret.HEADER, "wrong"));
+	}
+
+	@Test
+	public void studentIsRejected() throws IOException {
+		String basic = "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8));
+		assertEquals(HttpURLConnection.HTTP_FORBIDDEN, request("GET", "/metrics/pool", "Authorization", basic));
+	}
+
+	@Test
+	public void rowsReadAreCounted() throws IOException {
+		String basic = "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8));
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/user/" + student.username, "Authorization", basic));
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + "/metrics/prometheus").openConnection();
+		connection.setRequestProperty(AdminSecret.HEADER, SECRET);
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+			assertTrue(reader.lines().filter(line -> line.startsWith("passi_sql_rows_total{statement=\"SELECT"))
+					.anyMatch(line -> Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)) > 0));
+		}
+	}
+
+	private static int request(String method, String path, String header, String value) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+		connection.setRequestMethod(method);
+		if (header != null) {
+			connection.setRequestProperty(header, value);
+		}
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+}
@@ -0,0 +1,131 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+
+/**
+ * DELETE /answer/ against passi-rest in embedded Tomcat: a delete failing
+ * halfway is answered with 417 and leaves the answer and its progress as
+ * they were.
+ */
+public class DeleteAnswerTest {
+
+	private static Path workDir;
+	private static EmbeddedDatabase database;
+	private static EmbeddedServer server;
+	private static Student student;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		workDir = Files.createTempDirectory("passi-test");
+		database = new EmbeddedDatabase("deleteanswer", false, 2);
+		SyntheticDataset dataset = new SyntheticDataset(1, 1, 2, 2, 2, 1, 42);
+		dataset.insert(database.getDataSource());
+		student = dataset.getStudents().get(0);
+		// Rows referring to answerpoints make deleting them fail
+		try (Connection connection = database.getDataSource().getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE answerpoint_notes (answerpoint_id INT NOT NULL, "
+					+ "FOREIGN KEY (answerpoint_id) REFERENCES answerpoints (answerpoint_id))");
+		}
+		System.setProperty("db.url", database.getUrl());
+		System.setProperty("images.path", workDir.resolve("images").toString());
+		server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+		}
+		if (database != null) {
+			database.close();
+		}
+		try (Stream<Path> paths = Files.walk(workDir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void failedDeleteKeepsAnswer() throws IOException, SQLException {
+		int worksheetID = student.answered.get(0);
+		int answerpoints = count("SELECT COUNT(*) FROM answerpoints JOIN answersheets USING (answersheet_id) "
+				+ "WHERE worksheet_id = ? AND user_id = ?", worksheetID);
+		update("INSERT INTO answerpoint_notes SELECT MAX(answerpoint_id) FROM answerpoints "
+				+ "JOIN answersheets USING (answersheet_id) WHERE worksheet_id = ? AND user_id = ?", worksheetID);
+		try {
+			assertEquals(HttpStatus.EXPECTATION_FAILED.value(), delete(worksheetID));
+			assertEquals(1, count("SELECT COUNT(*) FROM answersheets WHERE worksheet_id = ? AND user_id = ?", worksheetID));
+			assertEquals(answerpoints, count("SELECT COUNT(*) FROM answerpoints JOIN answersheets USING (answersheet_id) "
+					+ "WHERE worksheet_id = ? AND user_id = ?", worksheetID));
+			assertEquals(1, count("SELECT COUNT(*) FROM progress WHERE worksheet_id = ? AND user_id = ?", worksheetID));
+		} finally {
+			try (Connection connection = database.getDataSource().getConnection();
+					Statement statement = connection.createStatement()) {
+				statement.execute("DELETE FROM answerpoint_notes");
+			}
+		}
+		assertEquals(HttpURLConnection.HTTP_NO_CONTENT, delete(worksheetID));
+		assertEquals(0, count("SELECT COUNT(*) FROM progress WHERE worksheet_id = ? AND user_id = ?", worksheetID));
+	}
+
+	private static int delete(int worksheetID) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				server.getBaseUrl() + "/answer/" + worksheetID + "/" + student.userID).openConnection();
+		connection.setRequestMethod("DELETE");
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8)));
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+
+	// Statements with worksheet_id and user_id parameters
+	private static int count(String sql, int worksheetID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setInt(1, worksheetID);
+			statement.setInt(2, student.userID);
+			try (ResultSet rs = statement.executeQuery()) {
+				rs.next();
+				return rs.getInt(1);
+			}
+		}
+	}
+
+	private static void update(String sql, int worksheetID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setInt(1, worksheetID);
+			statement.setInt(2, student.userID);
+			statement.executeUpdate();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+
+/**
+ * Uploaded images against passi-rest in embedded Tomcat: only the uploader
+ * gets an image or may replace it, the ETag is the hash of the stored
+ * content, deleting the answer referring to an image removes its name and
+ * a name is not linked when storing the file fails.
+ */
+public class ImageAccessTest {
+
+	private static Path workDir;
+	private static EmbeddedDatabase database;
+	private static EmbeddedServer server;
+	private static Student owner;
+	private static Student other;
+	private static byte[] jpeg;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		workDir = Files.createTempDirectory("passi-test");
+		database = new EmbeddedDatabase("imageaccess", false, 2);
+		SyntheticDataset dataset = new SyntheticDataset(1, 2, 2, 1, 2, 0.5, 42);
+		dataset.insert(database.getDataSource());
+		owner = dataset.getStudents().get(0);
+		other = dataset.getStudents().get(1);
+		System.setProperty("db.url", database.getUrl());
+		System.setProperty("images.path", workDir.resolve("images").toString());
+		server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "jpg", out);
+		jpeg = out.toByteArray();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+		}
+		if (database != null) {
+			database.close();
+		}
+		try (Stream<Path> paths = Files.walk(workDir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void ownerGetsImageWithContentHashETag() throws IOException {
+		assertEquals(HttpURLConnection.HTTP_OK, upload("own", owner));
+		HttpURLConnection connection = connection("GET", "/image/own.jpg", owner);
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		assertEquals("\"" + DigestUtils.sha256Hex(jpeg) + "\"", connection.getHeaderField("ETag"));
+		connection.getInputStream().close();
+	}
+
+	@Test
+	public void storedUnderHashOfStrippedContent() throws IOException {
+		// SOI, EXIF segment, rest of the image
+		byte[] exif = { (byte) 0xFF, (byte) 0xE1, 0, 8, 'E', 'x', 'i', 'f', 0, 0 };
+		byte[] withExif = new byte[jpeg.length + exif.length];
+		System.arraycopy(jpeg, 0, withExif, 0, 2);
+		System.arraycopy(exif, 0, withExif, 2, exif.length);
+		System.arraycopy(jpeg, 2, withExif, 2 + exif.length, jpeg.length - 2);
+		assertEquals(HttpURLConnection.HTTP_OK, upload("exif", owner, withExif));
+		HttpURLConnection connection = connection("GET", "/image/exif.jpg", owner);
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		assertEquals("\"" + DigestUtils.sha256Hex(jpeg) + "\"", connection.getHeaderField("ETag"));
+		connection.getInputStream().close();
+	}
+
+	@Test
+	public void otherUserGetsNotFound() throws IOException {
+		assertEquals(HttpURLConnection.HTTP_OK, upload("private", owner));
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, status(connection("GET", "/image/private.jpg", other)));
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+				status(connection("GET", "/image/" + DigestUtils.sha256Hex(jpeg) + ".jpg", other)));
+	}
+
+	@Test
+	public void deletedAnswerReleasesImage() throws IOException, SQLException {
+		int worksheetID = owner.answered.get(0);
+		assertEquals(HttpURLConnection.HTTP_OK, upload("answered", owner));
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement("UPDATE answerpoints SET image_url = ? "
+						+ "WHERE answersheet_id = (SELECT answersheet_id FROM answersheets WHERE worksheet_id = ? AND user_id = ?)")) {
+			statement.setString(1, "answered.jpg");
+			statement.setInt(2, worksheetID);
+			statement.setInt(3, owner.userID);
+			assertTrue(statement.executeUpdate() > 0);
+		}
+		assertEquals(HttpURLConnection.HTTP_NO_CONTENT,
+				status(connection("DELETE", "/answer/" + worksheetID + "/" + owner.userID, owner)));
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, status(connection("GET", "/image/answered.jpg", owner)));
+	}
+
+	@Test
+	public void failedStoreLeavesNameUnlinked() throws IOException, SQLException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB), "jpg", out);
+		byte[] content = out.toByteArray();
+		// A file where the shard directory should be makes put() fail
+		Path shard = workDir.resolve("images").resolve("store").resolve(DigestUtils.sha256Hex(content).substring(0, 2));
+		Files.createDirectories(shard.getParent());
+		Files.write(shard, new byte[0]);
+		try {
+			assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, upload("unstored", owner, content));
+			assertEquals(HttpURLConnection.HTTP_NOT_FOUND, status(connection("GET", "/image/unstored.jpg", owner)));
+			try (Connection connection = database.getDataSource().getConnection();
+					PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM image_names WHERE name = ?")) {
+				statement.setString(1, "unstored");
+				try (ResultSet rs = statement.executeQuery()) {
+					rs.next();
+					assertEquals(0, rs.getInt(1));
+				}
+			}
+		} finally {
+			Files.delete(shard);
+		}
+		assertEquals(HttpURLConnection.HTTP_OK, upload("unstored", owner, content));
+		assertEquals(HttpURLConnection.HTTP_OK, status(connection("GET", "/image/unstored.jpg", owner)));
+	}
+
+	@Test
+	public void otherUserCannotReplaceName() throws IOException {
+		assertEquals(HttpURLConnection.HTTP_OK, upload("taken", owner));
+		assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, upload("taken", other));
+	}
+
+	private static int upload(String name, Student student) throws IOException {
+		return upload(name, student, jpeg);
+	}
+
+	private static int upload(String name, Student student, byte[] content) throws IOException {
+		HttpURLConnection connection = connection("POST", "/upload/" + name, student);
+		connection.setRequestProperty("Content-Type", "image/jpeg");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(content);
+		}
+		return status(connection);
+	}
+
+	private static int status(HttpURLConnection connection) throws IOException {
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+
+	private static HttpURLConnection connection(String method, String path, Student student) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8)));
+		return connection;
+	}
+}
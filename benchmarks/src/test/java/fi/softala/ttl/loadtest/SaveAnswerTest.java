@@ -0,0 +1,219 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.loadtest.SyntheticDataset.Sheet;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+import fi.softala.ttl.model.Answerpoint;
+import fi.softala.ttl.model.Answersheet;
+
+/**
+ * POST /answer/ against passi-rest in embedded Tomcat: an answer refused as
+ * a duplicate leaves nothing behind, also when the duplicate key is hit
+ * after the answersheet was inserted. The progress summary follows
+ * answersheets also when they are changed outside passi-rest, and progress
+ * totals are the worksheets distributed to the student's group.
+ */
+public class SaveAnswerTest {
+
+	private static Path workDir;
+	private static EmbeddedDatabase database;
+	private static EmbeddedServer server;
+	private static Student student;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		workDir = Files.createTempDirectory("passi-test");
+		database = new EmbeddedDatabase("saveanswer", false, 2);
+		SyntheticDataset dataset = new SyntheticDataset(1, 1, 3, 1, 2, 0, 42);
+		dataset.insert(database.getDataSource());
+		student = dataset.getStudents().get(0);
+		// Lets an answer fail on its answerpoints after the answersheet insert
+		try (Connection connection = database.getDataSource().getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("ALTER TABLE answerpoints ADD CONSTRAINT uq_test_answerpoint UNIQUE (answersheet_id, waypoint_id)");
+			// The instructor application may leave feedback_complete NULL
+			statement.execute("ALTER TABLE answersheets ALTER COLUMN feedback_complete SET NULL");
+		}
+		System.setProperty("db.url", database.getUrl());
+		System.setProperty("images.path", workDir.resolve("images").toString());
+		server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+		}
+		if (database != null) {
+			database.close();
+		}
+		try (Stream<Path> paths = Files.walk(workDir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void secondAnswerIsRefused() throws IOException, SQLException {
+		Sheet sheet = student.unanswered.poll();
+		assertEquals(HttpURLConnection.HTTP_CREATED, post(answer(sheet, 1)));
+		assertEquals(HttpURLConnection.HTTP_CONFLICT, post(answer(sheet, 1)));
+		assertEquals(1, answersheets(sheet.worksheetID));
+	}
+
+	@Test
+	public void duplicateAfterInsertRollsBackAnswer() throws IOException, SQLException {
+		Sheet sheet = student.unanswered.poll();
+		assertEquals(HttpURLConnection.HTTP_CONFLICT, post(answer(sheet, 2)));
+		assertEquals(0, answersheets(sheet.worksheetID));
+		assertEquals(null, feedbackComplete(sheet.worksheetID));
+		assertEquals(HttpURLConnection.HTTP_CREATED, post(answer(sheet, 1)));
+		assertEquals(Integer.valueOf(0), feedbackComplete(sheet.worksheetID));
+	}
+
+	@Test
+	public void progressFollowsOtherWriters() throws IOException, SQLException {
+		Sheet sheet = student.unanswered.poll();
+		assertEquals(HttpURLConnection.HTTP_CREATED, post(answer(sheet, 1)));
+		update("UPDATE answersheets SET feedback_complete = 1 WHERE worksheet_id = ? AND user_id = ?", sheet.worksheetID);
+		assertEquals(Integer.valueOf(1), feedbackComplete(sheet.worksheetID));
+		update("UPDATE answersheets SET feedback_complete = NULL WHERE worksheet_id = ? AND user_id = ?", sheet.worksheetID);
+		assertEquals(Integer.valueOf(0), feedbackComplete(sheet.worksheetID));
+		update("DELETE FROM answerpoints WHERE answersheet_id IN "
+				+ "(SELECT answersheet_id FROM answersheets WHERE worksheet_id = ? AND user_id = ?)", sheet.worksheetID);
+		update("DELETE FROM answersheets WHERE worksheet_id = ? AND user_id = ?", sheet.worksheetID);
+		assertEquals(null, feedbackComplete(sheet.worksheetID));
+	}
+
+	@Test
+	public void progressCountsDistributedWorksheets() throws IOException, SQLException {
+		for (String path : new String[] { "/progress/", "/home/" }) {
+			JsonNode body = get(path);
+			JsonNode progress = path.equals("/home/") ? body.get("progress") : body;
+			assertEquals(answered(), progress.get("completed").asLong());
+			assertEquals(3, progress.get("total").asLong());
+		}
+	}
+
+	// Answer with the first waypoint answered the given number of times
+	private static Answersheet answer(Sheet sheet, int points) {
+		Answersheet answersheet = new Answersheet();
+		answersheet.setWorksheetID(sheet.worksheetID);
+		answersheet.setGroupID(student.groupID);
+		answersheet.setUserID(student.userID);
+		answersheet.setPlanning("Test planning");
+		ArrayList<Answerpoint> answerpoints = new ArrayList<>();
+		for (int p = 0; p < points; p++) {
+			Answerpoint answerpoint = new Answerpoint();
+			answerpoint.setAnswerText("Test answer " + (p + 1));
+			answerpoint.setWaypointID(sheet.waypointIDs[0]);
+			answerpoint.setOptionID(sheet.optionIDs[0][0]);
+			answerpoints.add(answerpoint);
+		}
+		answersheet.setAnswerpoints(answerpoints);
+		return answersheet;
+	}
+
+	private static int answersheets(int worksheetID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(
+						"SELECT COUNT(*) FROM answersheets WHERE worksheet_id = ? AND user_id = ?")) {
+			statement.setInt(1, worksheetID);
+			statement.setInt(2, student.userID);
+			try (ResultSet rs = statement.executeQuery()) {
+				rs.next();
+				return rs.getInt(1);
+			}
+		}
+	}
+
+	// Progress row of the student's answer, null if none
+	private static Integer feedbackComplete(int worksheetID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement("SELECT feedback_complete FROM progress "
+						+ "WHERE user_id = ? AND group_id = ? AND worksheet_id = ?")) {
+			statement.setInt(1, student.userID);
+			statement.setInt(2, student.groupID);
+			statement.setInt(3, worksheetID);
+			try (ResultSet rs = statement.executeQuery()) {
+				return rs.next() ? rs.getInt(1) : null;
+			}
+		}
+	}
+
+	private static long answered() throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM answersheets WHERE user_id = ?")) {
+			statement.setInt(1, student.userID);
+			try (ResultSet rs = statement.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+
+	// Statement of another writer, with the worksheet and the student as parameters
+	private static void update(String sql, int worksheetID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setInt(1, worksheetID);
+			statement.setInt(2, student.userID);
+			statement.executeUpdate();
+		}
+	}
+
+	private static JsonNode get(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8)));
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		try (InputStream in = connection.getInputStream()) {
+			return new ObjectMapper().readTree(in);
+		}
+	}
+
+	private static int post(Answersheet answersheet) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + "/answer/").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8)));
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(new ObjectMapper().writeValueAsBytes(answersheet));
+		}
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+}
@@ -0,0 +1,138 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+
+/**
+ * Access tokens from /login/ against passi-rest in embedded Tomcat: a token
+ * authenticates API requests but cannot be exchanged for a new token, and a
+ * password change revokes it.
+ */
+public class TokenLoginTest {
+
+	private static Path workDir;
+	private static EmbeddedDatabase database;
+	private static EmbeddedServer server;
+	private static Student student;
+	private static Student other;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		workDir = Files.createTempDirectory("passi-test");
+		database = new EmbeddedDatabase("tokenlogin", false, 2);
+		SyntheticDataset dataset = new SyntheticDataset(1, 2, 2, 1, 2, 0.5, 42);
+		dataset.insert(database.getDataSource());
+		student = dataset.getStudents().get(0);
+		other = dataset.getStudents().get(1);
+		System.setProperty("db.url", database.getUrl());
+		System.setProperty("images.path", workDir.resolve("images").toString());
+		server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+		}
+		if (database != null) {
+			database.close();
+		}
+		try (Stream<Path> paths = Files.walk(workDir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void basicCredentialsGetToken() throws IOException {
+		String token = login(student, SyntheticDataset.PASSWORD);
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/user/" + student.username, "Bearer " + token));
+	}
+
+	@Test
+	public void tokenCannotBeRenewed() throws IOException {
+		String token = login(student, SyntheticDataset.PASSWORD);
+		assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, request("POST", "/login/", "Bearer " + token));
+	}
+
+	@Test
+	public void passwordChangeRevokesToken() throws IOException, SQLException {
+		String token = login(other, SyntheticDataset.PASSWORD);
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/user/" + other.username, "Bearer " + token));
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement("UPDATE users SET password = ? WHERE user_id = ?")) {
+			statement.setString(1, new BCryptPasswordEncoder().encode("changed"));
+			statement.setInt(2, other.userID);
+			statement.executeUpdate();
+		}
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/update-rest-password/" + other.userID, null));
+		assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, request("GET", "/user/" + other.username, "Bearer " + token));
+		String renewed = login(other, "changed");
+		assertEquals(HttpURLConnection.HTTP_OK, request("GET", "/user/" + other.username, "Bearer " + renewed));
+	}
+
+	private static String login(Student student, String password) throws IOException {
+		HttpURLConnection connection = connection("POST", "/login/", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		try (InputStream in = connection.getInputStream()) {
+			String token = new ObjectMapper().readTree(readAll(in)).get("token").asText();
+			assertNotNull(token);
+			return token;
+		}
+	}
+
+	private static int request(String method, String path, String authorization) throws IOException {
+		HttpURLConnection connection = connection(method, path, authorization);
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+
+	private static HttpURLConnection connection(String method, String path, String authorization) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+		connection.setRequestMethod(method);
+		if (authorization != null) {
+			connection.setRequestProperty("Authorization", authorization);
+		}
+		return connection;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,94 @@
+package fi.softala.ttl.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import fi.softala.ttl.benchmarks.EmbeddedDatabase;
+import fi.softala.ttl.configuration.VirtualThreadTaskExecutor;
+import fi.softala.ttl.loadtest.SyntheticDataset.Student;
+
+/**
+ * async.virtualThreads=true against passi-rest in embedded Tomcat. Virtual
+ * threads need a Java 21 runtime, on older ones only the refusal to start
+ * is tested and the rest is skipped.
+ */
+public class VirtualThreadsTest {
+
+	@Test
+	public void executorRunsTasksOnNamedVirtualThreads() throws Exception {
+		assumeTrue(VirtualThreadTaskExecutor.isSupported());
+		VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("passi-test-");
+		try {
+			Future<Thread> thread = executor.submit(Thread::currentThread);
+			assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread.get(10, TimeUnit.SECONDS)));
+			assertTrue(thread.get().getName().startsWith("passi-test-"));
+		} finally {
+			executor.destroy();
+		}
+	}
+
+	@Test
+	public void serverAnswersOnVirtualThreads() throws Exception {
+		assumeTrue(VirtualThreadTaskExecutor.isSupported());
+		Path workDir = Files.createTempDirectory("passi-test");
+		EmbeddedDatabase database = new EmbeddedDatabase("virtualthreads", false, 2);
+		EmbeddedServer server = null;
+		try {
+			SyntheticDataset dataset = new SyntheticDataset(1, 1, 2, 1, 2, 0.5, 42);
+			dataset.insert(database.getDataSource());
+			Student student = dataset.getStudents().get(0);
+			System.setProperty("db.url", database.getUrl());
+			System.setProperty("images.path", workDir.resolve("images").toString());
+			System.setProperty("async.virtualThreads", "true");
+			server = new EmbeddedServer(workDir.resolve("tomcat").toFile(), 10, false);
+			// Queries on the query executor, and an async endpoint on the read request executor
+			assertEquals(HttpURLConnection.HTTP_OK, get(server, "/home/", student));
+			assertEquals(HttpURLConnection.HTTP_OK, get(server, "/worksheet/" + student.groupID, student));
+		} finally {
+			System.clearProperty("async.virtualThreads");
+			if (server != null) {
+				server.close();
+			}
+			database.close();
+			try (Stream<Path> paths = Files.walk(workDir)) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unsupportedRuntimeIsRefused() {
+		assumeFalse(VirtualThreadTaskExecutor.isSupported());
+		new VirtualThreadTaskExecutor("passi-test-");
+	}
+
+	private static int get(EmbeddedServer server, String path, Student student) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseUrl() + path).openConnection();
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+				(student.username + ":" + SyntheticDataset.PASSWORD).getBytes(StandardCharsets.UTF_8)));
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status;
+	}
+}
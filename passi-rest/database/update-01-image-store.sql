@@ -0,0 +1,28 @@
+--
+-- Content-addressed image store (passi-rest images/store)
+--
+-- images: one row per stored file, keyed by SHA-256 of the uploaded bytes.
+-- ref_count is the number of image_names rows pointing to the file. Files
+-- with no references are removed by the service after a grace period.
+--
+-- image_names: upload names used by clients, e.g. answerpoints.image_url
+-- '13-5.jpg' is uploaded as '13-5' and resolved through this table.
+--
+
+CREATE TABLE IF NOT EXISTS `images` (
+  `sha256` char(64) NOT NULL,
+  `size` bigint(20) NOT NULL,
+  `ref_count` int(11) NOT NULL DEFAULT '0',
+  `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `released` timestamp NULL DEFAULT NULL,
+  PRIMARY KEY (`sha256`),
+  KEY `released` (`released`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `image_names` (
+  `name` varchar(64) NOT NULL,
+  `sha256` char(64) NOT NULL,
+  PRIMARY KEY (`name`),
+  KEY `sha256` (`sha256`),
+  CONSTRAINT `image_names_ibfk_1` FOREIGN KEY (`sha256`) REFERENCES `images` (`sha256`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,26 @@
+--
+-- One answersheet per worksheet and user (passi-rest saveAnswer)
+--
+-- Duplicates left by concurrent submits are removed first, keeping the
+-- earliest answer. Their answerpoints go through ON DELETE CASCADE.
+--
+-- The removed rows are copied to answersheets_removed and
+-- answerpoints_removed before the delete. Check them with the instructors
+-- (a later duplicate may hold the more complete answer) and drop the two
+-- tables when no longer needed.
+--
+
+CREATE TABLE `answersheets_removed` AS
+SELECT DISTINCT a.* FROM `answersheets` a
+  JOIN `answersheets` b ON a.`worksheet_id` = b.`worksheet_id` AND a.`user_id` = b.`user_id`
+   AND a.`answersheet_id` > b.`answersheet_id`;
+
+CREATE TABLE `answerpoints_removed` AS
+SELECT p.* FROM `answerpoints` p
+  JOIN `answersheets_removed` r ON r.`answersheet_id` = p.`answersheet_id`;
+
+DELETE a FROM `answersheets` a
+  JOIN `answersheets_removed` r ON r.`answersheet_id` = a.`answersheet_id`;
+
+ALTER TABLE `answersheets`
+  ADD UNIQUE KEY `uq_answersheets_worksheet_user` (`worksheet_id`, `user_id`);
@@ -0,0 +1,48 @@
+--
+-- Progress summary per user, group and worksheet (passi-rest /progress, /feedbackmap)
+--
+-- progress has one row per answersheet keyed by user, group and worksheet,
+-- so the answers of a user in a group are one primary key range. It is
+-- maintained only by the triggers below, whoever writes answersheets:
+-- passi-rest saving and deleting answers, the instructor application
+-- completing feedback, or manual repairs. feedback_complete is 0 when the
+-- answersheet column is NULL.
+--
+-- Run with passi-rest stopped, the backfill does not see answers saved
+-- while it runs.
+--
+
+CREATE TABLE IF NOT EXISTS `progress` (
+  `user_id` int(11) NOT NULL,
+  `group_id` int(11) NOT NULL,
+  `worksheet_id` int(11) NOT NULL,
+  `feedback_complete` tinyint(1) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`user_id`, `group_id`, `worksheet_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+DROP TRIGGER IF EXISTS `answersheets_progress_insert`;
+
+CREATE TRIGGER `answersheets_progress_insert` AFTER INSERT ON `answersheets` FOR EACH ROW
+  INSERT INTO `progress` (`user_id`, `group_id`, `worksheet_id`, `feedback_complete`)
+  VALUES (NEW.`user_id`, NEW.`group_id`, NEW.`worksheet_id`, COALESCE(NEW.`feedback_complete`, 0))
+  ON DUPLICATE KEY UPDATE `feedback_complete` = VALUES(`feedback_complete`);
+
+DROP TRIGGER IF EXISTS `answersheets_progress_update`;
+
+CREATE TRIGGER `answersheets_progress_update` AFTER UPDATE ON `answersheets` FOR EACH ROW
+  UPDATE `progress`
+     SET `user_id` = NEW.`user_id`, `group_id` = NEW.`group_id`, `worksheet_id` = NEW.`worksheet_id`,
+         `feedback_complete` = COALESCE(NEW.`feedback_complete`, 0)
+   WHERE `user_id` = OLD.`user_id` AND `group_id` = OLD.`group_id` AND `worksheet_id` = OLD.`worksheet_id`;
+
+DROP TRIGGER IF EXISTS `answersheets_progress_delete`;
+
+CREATE TRIGGER `answersheets_progress_delete` AFTER DELETE ON `answersheets` FOR EACH ROW
+  DELETE FROM `progress`
+   WHERE `user_id` = OLD.`user_id` AND `group_id` = OLD.`group_id` AND `worksheet_id` = OLD.`worksheet_id`;
+
+DELETE FROM `progress`;
+
+INSERT INTO `progress` (`user_id`, `group_id`, `worksheet_id`, `feedback_complete`)
+SELECT `user_id`, `group_id`, `worksheet_id`, COALESCE(`feedback_complete`, 0)
+  FROM `answersheets`;
@@ -0,0 +1,23 @@
+--
+-- Owner of upload names (passi-rest /image/, /upload/)
+--
+-- image_names.user_id is the student who uploaded the name. Images are only
+-- served to their owner, and a name cannot be taken over by another user.
+-- Existing names are assigned to the user whose answerpoint refers to them,
+-- names without an answerpoint stay without owner and are not served.
+--
+-- answerpoints.image_url is indexed for the backfill below and for the
+-- lookups by upload name when answers are deleted or images served.
+--
+
+ALTER TABLE `image_names` ADD COLUMN `user_id` int(11) DEFAULT NULL;
+
+CREATE INDEX `image_names_user_id` ON `image_names` (`user_id`);
+
+CREATE INDEX `answerpoints_image_url` ON `answerpoints` (`image_url`);
+
+UPDATE `image_names`
+  JOIN `answerpoints` ON `answerpoints`.`image_url` IN (`image_names`.`name`, CONCAT(`image_names`.`name`, '.jpg'))
+  JOIN `answersheets` ON `answersheets`.`answersheet_id` = `answerpoints`.`answersheet_id`
+   SET `image_names`.`user_id` = `answersheets`.`user_id`
+ WHERE `image_names`.`user_id` IS NULL;
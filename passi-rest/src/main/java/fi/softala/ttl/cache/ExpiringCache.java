@@ -0,0 +1,126 @@
+package fi.softala.ttl.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * Small in-process cache with LRU size eviction and time-to-live expiry.
+ *
+ * Concurrent misses for the same key are collapsed into one load: the first
+ * caller runs the loader and the others wait for its result. A failed load is
+ * not cached, so the next caller tries again.
+ *
+ * @param <K> key type
+ * @param <V> value type, should be treated as immutable by callers
+ */
+public class ExpiringCache<K, V> {
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	public ExpiringCache(int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+				return size() > ExpiringCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get cached value or load it with the given loader if missing or expired.
+	 *
+	 * @param key
+	 * @param loader called at most once per miss, outside of the cache lock
+	 * @return V cached or freshly loaded value
+	 */
+	public V get(K key, Supplier<V> loader) {
+		CacheEntry<V> entry;
+		boolean owner = false;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+				entry = new CacheEntry<>(new FutureTask<>(loader::get), System.currentTimeMillis() + ttlMillis);
+				entries.put(key, entry);
+				owner = true;
+			}
+		}
+		if (owner) {
+			entry.task.run();
+		}
+		try {
+			return entry.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading cache entry " + key, e);
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				entries.remove(key, entry);
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Loading cache entry " + key + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Get cached value without loading.
+	 *
+	 * @param key
+	 * @return V or null if missing, expired or still loading
+	 */
+	public synchronized V getIfPresent(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry == null || entry.isExpired(System.currentTimeMillis()) || !entry.task.isDone()) {
+			return null;
+		}
+		try {
+			return entry.task.get();
+		} catch (InterruptedException | ExecutionException e) {
+			return null;
+		}
+	}
+
+	public synchronized void put(K key, V value) {
+		FutureTask<V> task = new FutureTask<>(() -> value);
+		task.run();
+		entries.put(key, new CacheEntry<>(task, System.currentTimeMillis() + ttlMillis));
+	}
+
+	public synchronized void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class CacheEntry<V> {
+
+		private final FutureTask<V> task;
+		private final long expiresAt;
+
+		CacheEntry(FutureTask<V> task, long expiresAt) {
+			this.task = task;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+}
@@ -2,58 +2,338 @@ package fi.softala.ttl.configuration;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.dbcp.BasicDataSource;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.ByteArrayHttpMessageConverter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import fi.softala.ttl.cache.ExpiringCache;
+import fi.softala.ttl.dao.ConnectionLimitingDataSource;
+import fi.softala.ttl.dao.MultiRowInserter;
+import fi.softala.ttl.metrics.AsyncQueryCountingInterceptor;
+import fi.softala.ttl.metrics.InstrumentedDataSource;
+import fi.softala.ttl.metrics.RowCountingJdbcTemplate;
+import fi.softala.ttl.metrics.RequestMetrics;
+import fi.softala.ttl.metrics.SqlMetrics;
+import fi.softala.ttl.model.WorksheetCatalogue;
+import fi.softala.ttl.service.QueryExecutor;
+
 @Configuration
 @EnableWebMvc
 @EnableScheduling
+@EnableTransactionManagement
 @ComponentScan(basePackages = "fi.softala.ttl.*")
 @PropertySource("classpath:data.properties")
 public class ApplicationConfiguration extends WebMvcConfigurerAdapter {
 	
+	private static final Logger log = LoggerFactory.getLogger(ApplicationConfiguration.class);
+	
 	@Autowired
 	private Environment env;
 	
+	/**
+	 * Connection pool. Sizes and timeouts come from data.properties (db.pool.*),
+	 * defaults suit a small MariaDB instance. Pool state is registered as a
+	 * JMX MBean and served at /metrics/pool.
+	 */
 	@Bean(name = "dataSource")
-	public BasicDataSource dataSource() {
-		BasicDataSource ds = new BasicDataSource();
-		ds.setDriverClassName(env.getProperty("db.driver"));
-		ds.setUrl(env.getProperty("db.url"));
-		ds.setUsername(env.getProperty("db.username"));
-		ds.setPassword(env.getProperty("db.password"));
-		ds.setDefaultAutoCommit(true);
-		ds.setInitialSize(3);
-		return ds;
+	public HikariDataSource dataSource() {
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("passi-pool");
+		config.setDriverClassName(env.getProperty("db.driver"));
+		config.setJdbcUrl(env.getProperty("db.url"));
+		config.setUsername(env.getProperty("db.username"));
+		config.setPassword(env.getProperty("db.password"));
+		config.setAutoCommit(true);
+		config.setMaximumPoolSize(env.getProperty("db.pool.maximumPoolSize", Integer.class, 10));
+		config.setMinimumIdle(env.getProperty("db.pool.minimumIdle", Integer.class, 3));
+		config.setConnectionTimeout(env.getProperty("db.pool.connectionTimeoutMs", Long.class, 5000L));
+		config.setValidationTimeout(env.getProperty("db.pool.validationTimeoutMs", Long.class, 3000L));
+		config.setIdleTimeout(env.getProperty("db.pool.idleTimeoutMs", Long.class, 600000L));
+		config.setMaxLifetime(env.getProperty("db.pool.maxLifetimeMs", Long.class, 1800000L));
+		config.setLeakDetectionThreshold(env.getProperty("db.pool.leakDetectionThresholdMs", Long.class, 20000L));
+		if (env.containsProperty("db.pool.connectionTestQuery")) {
+			config.setConnectionTestQuery(env.getProperty("db.pool.connectionTestQuery"));
+		}
+		// MariaDB Connector/J 1.1 prepares statements on the client and has no
+		// statement cache, it does not read cachePrepStmts, useServerPrepStmts
+		// or prepStmtCache* of MySQL Connector/J
+		config.setRegisterMbeans(true);
+		return new HikariDataSource(config);
+	}
+
+	/**
+	 * The pool wrapped for SQL metrics, used by JdbcTemplate and transactions.
+	 * Statements slower than sql.slowQueryMs and requests running more than
+	 * sql.maxQueriesPerRequest queries are logged to SlowQueries. With virtual
+	 * threads connections are handed out by a semaphore sized to the pool, see
+	 * isVirtualThreads().
+	 */
+	@Bean
+	@Primary
+	public InstrumentedDataSource instrumentedDataSource(HikariDataSource dataSource, SqlMetrics sqlMetrics) {
+		if (isVirtualThreads()) {
+			checkCarrierThreads(dataSource.getMaximumPoolSize());
+			return new InstrumentedDataSource(new ConnectionLimitingDataSource(dataSource,
+					dataSource.getMaximumPoolSize(), env.getProperty("async.virtual.connectionWaitMs", Long.class, 10000L)),
+					sqlMetrics);
+		}
+		return new InstrumentedDataSource(dataSource, sqlMetrics);
+	}
+
+	@Bean
+	public SqlMetrics sqlMetrics() {
+		return new SqlMetrics(TimeUnit.SECONDS.toMillis(env.getProperty("metrics.windowSeconds", Long.class, 60L)),
+				env.getProperty("sql.slowQueryMs", Long.class, 200L),
+				env.getProperty("sql.maxQueriesPerRequest", Integer.class, 20),
+				env.getProperty("sql.maxStatements", Integer.class, 200));
 	}
 
 	@Bean
-	public JdbcTemplate jdbcTemplate(BasicDataSource dataSource) {
-		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+	public JdbcTemplate jdbcTemplate(DataSource dataSource, SqlMetrics sqlMetrics) {
+		JdbcTemplate jdbcTemplate = new RowCountingJdbcTemplate(dataSource, sqlMetrics);
 		jdbcTemplate.setResultsMapCaseInsensitive(true);
 		return jdbcTemplate;
 	}
 
+	/**
+	 * Bulk inserts as plain JDBC batches. db.batch.multiRow=true sends
+	 * multi-row INSERT statements instead, which AnswerpointInsertBenchmark
+	 * measured 10-25 % faster only from about 50 rows; answers have a handful
+	 * of points (1 point 9.6 ms multi-row vs 6.6 ms batch, 10 points 12.3 vs
+	 * 11.5 ms). MariaDB Connector/J 1.1 has no rewriteBatchedStatements to do
+	 * the same in the driver.
+	 * 
+	 * db.batch.chunkSize limits rows per multi-row statement. 100 of the widest
+	 * rows (answersheets: two 1000 character columns, 3 bytes each in utf8)
+	 * stay below 1 MB, the max_allowed_packet default of MariaDB before 10.2.
+	 */
 	@Bean
-	public DataSourceTransactionManager dataSourceTransactionManager(BasicDataSource dataSource) {
+	public MultiRowInserter multiRowInserter(JdbcTemplate jdbcTemplate) {
+		return new MultiRowInserter(jdbcTemplate,
+				env.getProperty("db.batch.chunkSize", Integer.class, 100),
+				env.getProperty("db.batch.multiRow", Boolean.class, false));
+	}
+
+	/**
+	 * Transaction manager binding connections to the thread only in actual
+	 * transactions. Methods without one, like the concurrent reads of
+	 * QueryExecutor, return each connection after its statement instead of
+	 * holding it until the method returns.
+	 */
+	@Bean
+	public DataSourceTransactionManager dataSourceTransactionManager(DataSource dataSource) {
 	    DataSourceTransactionManager dataSourceTransactionManager = new DataSourceTransactionManager();
 	    dataSourceTransactionManager.setDataSource(dataSource);
+	    dataSourceTransactionManager.setTransactionSynchronization(
+	    		AbstractPlatformTransactionManager.SYNCHRONIZATION_ON_ACTUAL_TRANSACTION);
 	    return dataSourceTransactionManager;
 	}
 	
+	/**
+	 * Worksheet catalogues by group. Content changes only when instructors edit
+	 * worksheets, so entries live until TTL or explicit invalidation.
+	 */
+	@Bean
+	public ExpiringCache<Integer, WorksheetCatalogue> worksheetCatalogueCache() {
+		return new ExpiringCache<>(
+				env.getProperty("cache.worksheets.maxSize", Integer.class, 100),
+				TimeUnit.SECONDS.toMillis(env.getProperty("cache.worksheets.ttlSeconds", Long.class, 600L)));
+	}
+
+	/**
+	 * Version stamps of users by username for /user entity tags. Joining a
+	 * group through passi-rest drops the stamp, changes made by the
+	 * instructor application show when it expires.
+	 */
+	@Bean
+	public ExpiringCache<String, String> userVersionCache() {
+		return new ExpiringCache<>(
+				env.getProperty("cache.users.maxSize", Integer.class, 1000),
+				TimeUnit.SECONDS.toMillis(env.getProperty("cache.users.ttlSeconds", Long.class, 60L)));
+	}
+	
+	/**
+	 * Background workers for downscaled image variants. The queue is bounded and
+	 * full queue rejects new work instead of blocking uploads, see ImageServiceImpl.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ThreadPoolExecutor imageExecutor() {
+		int workers = env.getProperty("images.workers", Integer.class, 2);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("passi-image-");
+		threadFactory.setDaemon(true);
+		threadFactory.setThreadPriority(Thread.NORM_PRIORITY - 1);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(env.getProperty("images.queueSize", Integer.class, 100)),
+				threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Runs @Scheduled jobs, e.g. ImageServiceImpl.deleteReleasedImages().
+	 * Without this bean @EnableScheduling makes an unnamed single thread
+	 * executor that is only interrupted on close, and Tomcat finds it still
+	 * running on undeploy. A running job gets scheduler.awaitTerminationSeconds
+	 * to react to the interrupt.
+	 */
+	@Bean
+	public ThreadPoolTaskScheduler taskScheduler() {
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setThreadNamePrefix("passi-scheduled-");
+		scheduler.setDaemon(true);
+		scheduler.setAwaitTerminationSeconds(env.getProperty("scheduler.awaitTerminationSeconds", Integer.class, 10));
+		return scheduler;
+	}
+	
+	/**
+	 * Workers for concurrent reads of one request, see QueryExecutor. Every
+	 * running query holds a connection, so async.threads defaults to half of
+	 * the connection pool and the rest is left to request threads. A full
+	 * queue runs the query on the request thread. async.threads=0 runs all
+	 * queries on the request thread. With virtual threads every query gets
+	 * its own and waits for a connection in ConnectionLimitingDataSource.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public QueryExecutor queryExecutor(HikariDataSource dataSource, SqlMetrics sqlMetrics) {
+		int threads = env.getProperty("async.threads", Integer.class, Math.max(1, dataSource.getMaximumPoolSize() / 2));
+		long timeoutMillis = env.getProperty("async.timeoutMs", Long.class, 5000L);
+		if (isVirtualThreads()) {
+			return new QueryExecutor(VirtualThreadTaskExecutor.newExecutorService("passi-query-"), timeoutMillis,
+					sqlMetrics);
+		} else if (threads <= 0) {
+			return new QueryExecutor(null, timeoutMillis, sqlMetrics);
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("passi-query-");
+		threadFactory.setDaemon(true);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(env.getProperty("async.queueSize", Integer.class, 100)),
+				threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return new QueryExecutor(executor, timeoutMillis, sqlMetrics);
+	}
+	
+	/**
+	 * Executors of async endpoints by workload class, so that a class bulk
+	 * uploading photos or slow database calls do not take the connector
+	 * threads serving authentication and progress. Full executors answer 503,
+	 * see PassiRestController. Upload workers default to
+	 * images.maxConcurrentUploads, uploads beyond it would only wait there.
+	 * With virtual threads every request gets its own, see isVirtualThreads().
+	 */
+	@Bean
+	public AsyncTaskExecutor uploadRequestExecutor() {
+		return requestExecutor("passi-upload-",
+				env.getProperty("async.upload.threads", Integer.class,
+						env.getProperty("images.maxConcurrentUploads", Integer.class, 8)),
+				env.getProperty("async.upload.queueSize", Integer.class, 32));
+	}
+
+	@Bean
+	public AsyncTaskExecutor readRequestExecutor() {
+		return requestExecutor("passi-read-", env.getProperty("async.read.threads", Integer.class, 8),
+				env.getProperty("async.read.queueSize", Integer.class, 200));
+	}
+
+	@Bean
+	public AsyncTaskExecutor writeRequestExecutor() {
+		return requestExecutor("passi-write-", env.getProperty("async.write.threads", Integer.class, 4),
+				env.getProperty("async.write.queueSize", Integer.class, 100));
+	}
+
+	private AsyncTaskExecutor requestExecutor(String threadNamePrefix, int threads, int queueSize) {
+		if (isVirtualThreads()) {
+			return new VirtualThreadTaskExecutor(threadNamePrefix);
+		}
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setThreadNamePrefix(threadNamePrefix);
+		executor.setCorePoolSize(threads);
+		executor.setMaxPoolSize(threads);
+		executor.setQueueCapacity(queueSize);
+		executor.setAllowCoreThreadTimeOut(true);
+		executor.setDaemon(true);
+		return executor;
+	}
+
+	/**
+	 * async.virtualThreads=true runs async endpoints and the queries of
+	 * QueryExecutor on virtual threads (Java 21 and later), so requests
+	 * waiting for the database hold no platform thread. Database work is
+	 * limited to the connection pool size by ConnectionLimitingDataSource,
+	 * requests wait there up to async.virtual.connectionWaitMs.
+	 *
+	 * Before Java 24 a virtual thread blocking inside synchronized code, as
+	 * MariaDB Connector/J does while executing statements, keeps its carrier
+	 * thread. Carriers default to one per CPU, so the scheduler should be given
+	 * at least one per connection with -Djdk.virtualThreadScheduler.parallelism.
+	 */
+	private boolean isVirtualThreads() {
+		if (!env.getProperty("async.virtualThreads", Boolean.class, false)) {
+			return false;
+		}
+		if (!VirtualThreadTaskExecutor.isSupported()) {
+			throw new IllegalStateException("async.virtualThreads=true needs Java 21 or later, running on Java "
+					+ System.getProperty("java.specification.version"));
+		}
+		return true;
+	}
+
+	private static void checkCarrierThreads(int connections) {
+		if (VirtualThreadTaskExecutor.javaVersion() >= 24) {
+			return;
+		}
+		int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+				Runtime.getRuntime().availableProcessors());
+		if (carriers < connections) {
+			log.warn("Virtual threads have {} carrier threads for {} connections, statements pin their carrier "
+					+ "before Java 24. Set -Djdk.virtualThreadScheduler.parallelism={}", carriers, connections,
+					connections);
+		}
+	}
+
+	// Queries of async handlers are counted to their request
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		configurer.registerCallableInterceptors(new AsyncQueryCountingInterceptor(sqlMetrics()));
+	}
+	
+	/**
+	 * Per-endpoint request metrics recorded by RequestMetricsFilter and served
+	 * at /metrics/prometheus. Percentiles cover the last metrics.windowSeconds.
+	 */
+	@Bean
+	public RequestMetrics requestMetrics() {
+		return new RequestMetrics(TimeUnit.SECONDS.toMillis(env.getProperty("metrics.windowSeconds", Long.class, 60L)));
+	}
+	
 	@Bean
 	public ByteArrayHttpMessageConverter byteArrayHttpMessageConverter() {
 	    ByteArrayHttpMessageConverter arrayHttpMessageConverter = new ByteArrayHttpMessageConverter();
@@ -4,6 +4,8 @@ import javax.servlet.Filter;
 
 import org.springframework.web.servlet.support.AbstractAnnotationConfigDispatcherServletInitializer;
 
+import fi.softala.ttl.metrics.RequestMetricsFilter;
+
 public class ApplicationInitializer extends AbstractAnnotationConfigDispatcherServletInitializer {
  
     @Override
@@ -23,8 +25,8 @@ public class ApplicationInitializer extends AbstractAnnotationConfigDispatcherSe
     
     @Override
     protected Filter[] getServletFilters() {
-    	Filter [] singleton = { new CORSFilter()};
-    	return singleton;
+    	Filter [] filters = { new RequestMetricsFilter(), new CORSFilter()};
+    	return filters;
     }
  
 }
\ No newline at end of file
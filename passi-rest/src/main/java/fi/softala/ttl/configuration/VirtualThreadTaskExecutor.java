@@ -0,0 +1,88 @@
+package fi.softala.ttl.configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+
+/**
+ * Executor of async endpoints starting a virtual thread per task, used with
+ * async.virtualThreads=true. Tasks are never queued or rejected, blocking
+ * calls park the virtual thread instead of holding a platform thread.
+ *
+ * passi-rest is built for Java 8, so virtual threads are created through
+ * reflection and need a Java 21 runtime.
+ */
+public class VirtualThreadTaskExecutor extends ConcurrentTaskExecutor implements DisposableBean {
+
+	private final ExecutorService executorService;
+
+	/**
+	 * @param threadNamePrefix thread names are the prefix and a sequence number
+	 * @throws IllegalStateException if the runtime has no virtual threads
+	 */
+	public VirtualThreadTaskExecutor(String threadNamePrefix) {
+		this(newExecutorService(threadNamePrefix));
+	}
+
+	private VirtualThreadTaskExecutor(ExecutorService executorService) {
+		super(executorService);
+		this.executorService = executorService;
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads (Java 21 and later)
+	 */
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return javaVersion() >= 21;
+		} catch (NoSuchMethodException | NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return feature version of the runtime, 8 for Java 1.8
+	 * @throws NumberFormatException if java.specification.version is not a
+	 * version number
+	 */
+	public static int javaVersion() {
+		return Integer.parseInt(System.getProperty("java.specification.version").replaceFirst("^1\\.", ""));
+	}
+
+	/**
+	 * Thread.ofVirtual().name(prefix, 0).factory() and
+	 * Executors.newThreadPerTaskExecutor(factory) of Java 21.
+	 *
+	 * @param threadNamePrefix thread names are the prefix and a sequence number
+	 * @throws IllegalStateException if the runtime has no virtual threads
+	 */
+	public static ExecutorService newExecutorService(String threadNamePrefix) {
+		if (!isSupported()) {
+			throw new IllegalStateException("Virtual threads need Java 21 or later, running on Java "
+					+ System.getProperty("java.specification.version") + ". Set async.virtualThreads=false.");
+		}
+		try {
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 0L);
+			ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Virtual threads are not available", e.getTargetException());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads are not available", e);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		executorService.shutdownNow();
+	}
+}
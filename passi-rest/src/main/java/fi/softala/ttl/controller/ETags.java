@@ -0,0 +1,44 @@
+package fi.softala.ttl.controller;
+
+/**
+ * Helpers for entity tags and If-None-Match handling.
+ */
+final class ETags {
+
+	private ETags() {
+	}
+
+	// Quoted strong entity tag from a version stamp
+	static String of(String version) {
+		return "\"" + version + "\"";
+	}
+
+	// Weak entity tag for a version stamp that does not identify the bytes
+	static String weak(String version) {
+		return "W/" + of(version);
+	}
+
+	/**
+	 * Check If-None-Match request header against current entity tag.
+	 *
+	 * @param ifNoneMatch header value, may be null or a comma separated list
+	 * @param eTag current quoted entity tag, strong or weak
+	 * @return true if client's copy is up to date (weak comparison)
+	 */
+	static boolean matches(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+			return false;
+		}
+		String opaque = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,174 @@
+package fi.softala.ttl.controller;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Sends a file as response body without reading it into the heap. Under
+ * Tomcat with sendfile support the container copies the bytes in the kernel,
+ * otherwise FileChannel.transferTo feeds the servlet output stream.
+ * 
+ * Supports conditional requests (If-None-Match, If-Modified-Since) and a
+ * single byte range (Range, If-Range). Multiple ranges are answered with the
+ * whole file, which HTTP allows. The ETag is strong when the caller knows a
+ * content version, otherwise a weak one from size and modification time,
+ * which If-Range never accepts.
+ */
+final class FileDownload {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	private FileDownload() {
+	}
+
+	/**
+	 * Write file with caching headers, honouring conditional and range requests.
+	 * 
+	 * @param file existing regular file
+	 * @param version content version such as a hash, null if not known
+	 * @param contentType response content type
+	 * @param cacheControl Cache-Control header value
+	 */
+	static void send(Path file, String version, String contentType, String cacheControl,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			long lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+			String eTag = version != null ? ETags.of(version)
+					: ETags.weak(Long.toHexString(length) + "-" + Long.toHexString(lastModified));
+
+			response.setHeader(HttpHeaders.ETAG, eTag);
+			response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+			response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+			response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+			if (notModified(request, eTag, lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			long start = 0;
+			long end = length - 1;
+			String range = request.getHeader(HttpHeaders.RANGE);
+			if (range != null && rangeApplies(request, eTag, lastModified)) {
+				long[] bounds = parseRange(range, length);
+				if (bounds == null) {
+					response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+					response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				if (bounds.length == 2) {
+					start = bounds[0];
+					end = bounds[1];
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+				}
+			}
+
+			long count = end - start + 1;
+			response.setContentType(contentType);
+			response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(count));
+			if ("HEAD".equals(request.getMethod()) || count == 0) {
+				return;
+			}
+			if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+				request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+				request.setAttribute(SENDFILE_START, start);
+				request.setAttribute(SENDFILE_END, end + 1);
+				return;
+			}
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			while (count > 0) {
+				long transferred = channel.transferTo(start, count, out);
+				start += transferred;
+				count -= transferred;
+			}
+			response.flushBuffer();
+		}
+	}
+
+	private static boolean notModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return ETags.matches(ifNoneMatch, eTag);
+		}
+		long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+		return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+	}
+
+	// If-Range with a stale or weak validator means the client wants the whole new file
+	private static boolean rangeApplies(HttpServletRequest request, String eTag, long lastModified) {
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return !eTag.startsWith("W/") && ifRange.equals(eTag);
+		}
+		return dateHeader(request, HttpHeaders.IF_RANGE) == lastModified;
+	}
+
+	private static long dateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse Range header against file length.
+	 * 
+	 * @param range header value, e.g. bytes=0-499, bytes=500- or bytes=-500
+	 * @param length file length
+	 * @return long[] {start, end} inclusive; empty array to send whole file
+	 * (unknown unit, several ranges or malformed); null if not satisfiable
+	 */
+	static long[] parseRange(String range, long length) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		long start;
+		long end;
+		try {
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix == 0) {
+					return null;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+				if (end < start && start < length) {
+					return new long[0];
+				}
+			}
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+		if (start >= length) {
+			return null;
+		}
+		return new long[] { start, end };
+	}
+}
@@ -0,0 +1,88 @@
+package fi.softala.ttl.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import fi.softala.ttl.dao.ConnectionLimitingDataSource;
+import fi.softala.ttl.metrics.InstrumentedDataSource;
+import fi.softala.ttl.metrics.PrometheusText;
+import fi.softala.ttl.metrics.RequestMetrics;
+import fi.softala.ttl.metrics.SqlMetrics;
+
+/**
+ * Operational metrics for monitoring. Only reachable from the local host
+ * with the admin secret header, see SecurityConfiguration.
+ */
+@RestController
+public class MetricsController {
+
+	@Inject
+	private HikariDataSource dataSource;
+	
+	@Inject
+	private InstrumentedDataSource instrumentedDataSource;
+	
+	@Inject
+	private RequestMetrics requestMetrics;
+	
+	@Inject
+	private SqlMetrics sqlMetrics;
+
+	/**
+	 * Connection pool usage. The same values are available over JMX as
+	 * com.zaxxer.hikari:type=Pool (passi-pool).
+	 * 
+	 * With virtual threads requests wait for a connection before the pool,
+	 * counted in waitingForPermit.
+	 * 
+	 * @return Map as JSON with active, idle, total, waiting and max connections
+	 */
+	@RequestMapping(value = "/metrics/pool", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Map<String, Integer>> getPoolMetrics() {
+		Map<String, Integer> metrics = new LinkedHashMap<>();
+		HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+		if (pool == null) {
+			return new ResponseEntity<Map<String, Integer>>(metrics, HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		metrics.put("active", pool.getActiveConnections());
+		metrics.put("idle", pool.getIdleConnections());
+		metrics.put("total", pool.getTotalConnections());
+		metrics.put("waiting", pool.getThreadsAwaitingConnection());
+		metrics.put("max", dataSource.getMaximumPoolSize());
+		if (instrumentedDataSource.getTargetDataSource() instanceof ConnectionLimitingDataSource) {
+			metrics.put("waitingForPermit",
+					((ConnectionLimitingDataSource) instrumentedDataSource.getTargetDataSource()).getWaiting());
+		}
+		return new ResponseEntity<Map<String, Integer>>(metrics, HttpStatus.OK);
+	}
+
+	/**
+	 * Scrape endpoint for Prometheus: request counts, errors, latency
+	 * percentiles and SQL query counts by endpoint, and timing and row counts
+	 * by SQL statement.
+	 * 
+	 * @return metrics in Prometheus text format
+	 */
+	@RequestMapping(value = "/metrics/prometheus", method = RequestMethod.GET)
+	public ResponseEntity<String> getPrometheusMetrics() {
+		PrometheusText text = new PrometheusText();
+		requestMetrics.writeTo(text);
+		sqlMetrics.writeTo(text);
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, PrometheusText.CONTENT_TYPE);
+		return new ResponseEntity<String>(text.toString(), headers, HttpStatus.OK);
+	}
+}
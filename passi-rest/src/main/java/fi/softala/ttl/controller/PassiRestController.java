@@ -1,48 +1,65 @@
 package fi.softala.ttl.controller;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.File;
+import java.io.IOException;
 import java.security.Principal;
-import java.util.Collections;
+import java.sql.SQLTransientConnectionException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
+import org.springframework.core.NestedRuntimeException;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import fi.softala.ttl.model.Answersheet;
+import fi.softala.ttl.model.AnswersheetResult;
 import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.Home;
 import fi.softala.ttl.model.User;
+import fi.softala.ttl.model.WorksheetCatalogue;
+import fi.softala.ttl.service.ImageFile;
+import fi.softala.ttl.service.ImageService;
+import fi.softala.ttl.service.ImageSize;
 import fi.softala.ttl.service.PassiService;
 import fi.softala.ttl.dao.PassiDAO;
 import fi.softala.ttl.exception.EmptyAnswerContentException;
+import fi.softala.ttl.exception.ImageNotFoundException;
+import fi.softala.ttl.exception.InvalidImageException;
+import fi.softala.ttl.exception.TooManyUploadsException;
 import fi.softala.ttl.exception.UserNotFoundException;
 import fi.softala.ttl.exception.WorksheetNotFoundException;
+import fi.softala.ttl.security.CachingAuthenticationProvider;
+import fi.softala.ttl.security.PassiUserDetailsService;
+import fi.softala.ttl.security.TokenService;
 
 /**
  * @author Mika Ropponen | mika.ropponen@gmail.com
@@ -56,7 +73,6 @@ import fi.softala.ttl.exception.WorksheetNotFoundException;
 public class PassiRestController {
 
 	private static final Logger log = LoggerFactory.getLogger(PassiRestController.class);
-	private static final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
 
 	@Inject
 	private PassiDAO dao;
@@ -74,7 +90,32 @@ public class PassiRestController {
 	PassiService passiService;
 	
 	@Autowired
-    private InMemoryUserDetailsManager inMemoryUserDetailsManager;
+	private PassiUserDetailsService passiUserDetailsService;
+	
+	@Autowired
+	private CachingAuthenticationProvider cachingAuthenticationProvider;
+	
+	@Autowired
+	private TokenService tokenService;
+	
+	@Autowired
+	private ImageService imageService;
+	
+	@Autowired
+	private Environment env;
+
+	// Executors of async endpoints by workload class, see ApplicationConfiguration
+	@Inject
+	@Named("uploadRequestExecutor")
+	private AsyncTaskExecutor uploadRequestExecutor;
+
+	@Inject
+	@Named("readRequestExecutor")
+	private AsyncTaskExecutor readRequestExecutor;
+
+	@Inject
+	@Named("writeRequestExecutor")
+	private AsyncTaskExecutor writeRequestExecutor;
 
 	/**
 	 * Service start up.
@@ -88,22 +129,76 @@ public class PassiRestController {
 	}
 
 	/**
-	 * Find and get user by username with all related data at once.
+	 * Find and get user by username with all related data at once. A client
+	 * copy matching the cached version stamp of the user gets 304 without
+	 * database access, see PassiService.findUserVersion().
 	 * 
 	 * @param username
+	 * @param ifNoneMatch entity tag of the client's copy, optional
 	 * @return User as JSON including user data, user's groups, groups'
-	 * instructors; HttpStatus
+	 * instructors; HttpStatus, 304 if client's copy is up to date
 	 */
 	@RequestMapping(value = "/user/{username:.+}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<User> getUser(@PathVariable("username") String username, Principal principal) {
+	public ResponseEntity<User> getUser(@PathVariable("username") String username,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			Principal principal) {
 		if (username == null || username != null && !username.toLowerCase().equals(principal.getName())) {
 			return new ResponseEntity<User>(HttpStatus.FORBIDDEN);
 		}
+		String version = passiService.findUserVersion(username.trim());
+		if (version != null && ETags.matches(ifNoneMatch, ETags.of(version))) {
+			return new ResponseEntity<User>(cacheHeaders(ETags.of(version)), HttpStatus.NOT_MODIFIED);
+		}
 		User user = passiService.findUser(username.trim());
 		if (user == null)
 			throw new UserNotFoundException(username);
-		log.debug("getUser() : Requested user found for JSON response - User: {}", user);
-		return new ResponseEntity<User>(user, HttpStatus.OK);
+		HttpHeaders headers = cacheHeaders(ETags.of(user.getVersion()));
+		if (ETags.matches(ifNoneMatch, headers.getETag())) {
+			return new ResponseEntity<User>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		log.debug("getUser() : Requested user {} found for JSON response", username);
+		return new ResponseEntity<User>(user, headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Everything the client shows at start up in one request, instead of
+	 * /user, /progress and /worksheet and /feedbackmap of each group.
+	 * 
+	 * @param ifNoneMatch entity tag of the client's copy, optional
+	 * @return Home as JSON including user, groups' instructors, progress and
+	 * worksheets with completion and feedback state of each group;
+	 * HttpStatus, 304 if client's copy is up to date
+	 */
+	@RequestMapping(value = "/home/", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Home> getHome(
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			Principal principal) {
+		Home home = passiService.getHome(principal.getName());
+		if (home == null)
+			throw new UserNotFoundException(principal.getName());
+		HttpHeaders headers = cacheHeaders(ETags.of(home.getVersion()));
+		if (ETags.matches(ifNoneMatch, headers.getETag())) {
+			return new ResponseEntity<Home>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		log.debug("getHome() : Home of {} found for JSON response", principal.getName());
+		return new ResponseEntity<Home>(home, headers, HttpStatus.OK);
+	}
+
+	/**
+	 * Exchange Basic auth credentials for a signed access token. Later requests
+	 * send "Authorization: Bearer <token>" and skip password verification.
+	 * Tokens are not accepted here and stop working when the password changes,
+	 * see TokenAuthenticationFilter.
+	 * 
+	 * @return Map as JSON with token and expiresIn seconds; HttpStatus
+	 */
+	@RequestMapping(value = "/login/", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Map<String, Object>> login(Principal principal) {
+		Map<String, Object> token = new HashMap<>();
+		token.put("token", tokenService.issue(principal.getName(),
+				passiUserDetailsService.loadUserByUsername(principal.getName()).getPassword()));
+		token.put("expiresIn", tokenService.getTtlSeconds());
+		return new ResponseEntity<Map<String, Object>>(token, HttpStatus.OK);
 	}
 	
 	@RequestMapping(value = "/register/", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
@@ -114,8 +209,7 @@ public class PassiRestController {
 		user.setFirstname(user.getFirstname().trim());
 		user.setLastname(user.getLastname().trim());
 		
-		User userData = passiService.findUser(user.getUsername(), user.getEmail());
-		if (userData != null) {
+		if (passiService.isUserExist(user.getUsername(), user.getEmail())) {
 			return new ResponseEntity<Void>(HttpStatus.CONFLICT);
 		}
 		if (!user.getUsername().matches("^[A-zÄÖäöÅå0-9-._]{0,30}$")) {
@@ -124,10 +218,9 @@ public class PassiRestController {
 		if (!passiService.addUser(user)) {
 			return new ResponseEntity<Void>(HttpStatus.EXPECTATION_FAILED);
 		}
-		// Add new user to in-memory authentication users
-		inMemoryUserDetailsManager.createUser(new org.springframework.security.core.userdetails.User(user.getUsername(), 
-				passwordEncoder.encode(user.getPassword()), Collections.singleton(new SimpleGrantedAuthority("ROLE_USER"))));
-		log.debug("registerUser() : User successfully registered and added to authetication users");
+		// Drop anything cached under the new username, user is loaded from database on first login
+		evictAuthUser(user.getUsername());
+		log.debug("registerUser() : User successfully registered");
 		return new ResponseEntity<Void>(HttpStatus.OK);
 	}
 	
@@ -140,56 +233,113 @@ public class PassiRestController {
 		if (!userMap.containsKey("username") || !userMap.containsKey("password")) {
 			return new ResponseEntity<String>("User not found!", HttpStatus.EXPECTATION_FAILED);
 		}
-		inMemoryUserDetailsManager.deleteUser(userMap.get("username").toString());
-		inMemoryUserDetailsManager.createUser(
-				new org.springframework.security.core.userdetails.User(
-						userMap.get("username").toString(),
-						userMap.get("password").toString(),
-						Collections.singleton(new SimpleGrantedAuthority("ROLE_USER"))));
+		evictAuthUser(userMap.get("username").toString());
 		return new ResponseEntity<String>("Password refreshed for user " + userMap.get("username").toString(), HttpStatus.OK);
 	}
 
+	/**
+	 * Drop cached worksheet catalogue after an instructor has edited worksheets.
+	 * Only reachable from the local host with the admin secret header, see
+	 * SecurityConfiguration.
+	 * 
+	 * @param groupID group to refresh
+	 * @return String message, HttpStatus
+	 */
+	@RequestMapping(value = "/update-worksheets/{group}", method = RequestMethod.POST)
+	public ResponseEntity<String> updateWorksheets(@PathVariable("group") int groupID) {
+		passiService.invalidateWorksheets(groupID);
+		return new ResponseEntity<String>("Worksheets refreshed for group " + groupID, HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/update-worksheets/", method = RequestMethod.POST)
+	public ResponseEntity<String> updateAllWorksheets() {
+		passiService.invalidateAllWorksheets();
+		return new ResponseEntity<String>("Worksheets refreshed for all groups", HttpStatus.OK);
+	}
+
 	/**
 	 * Get worksheets by group ID. Worksheets are sorted into categories.
+	 * Handled asynchronously on the read executor.
 	 * 
 	 * @param groupID
-	 * @return List<Category> as JSON including Worksheets, Waypoints, Options; HttpStatus
+	 * @param ifNoneMatch entity tag of the client's copy, optional
+	 * @return List<Category> as JSON including Worksheets, Waypoints, Options;
+	 * HttpStatus, 304 if client's copy is up to date
 	 */
 	@RequestMapping(value = "/worksheet/{group}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<List<Category>> getWorksheets(@PathVariable("group") int groupID, Principal principal) {
-		List<Category> categorizedWorksheets = passiService.getWorksheets(groupID, principal.getName());
-		if (categorizedWorksheets.size() == 0)
-			throw new WorksheetNotFoundException(groupID);
-		log.debug("getWorksheets() : Requested categorized worksheets List<Category> found for JSON response");
-		return new ResponseEntity<List<Category>>(categorizedWorksheets, HttpStatus.OK);
+	public WebAsyncTask<ResponseEntity<List<Category>>> getWorksheets(@PathVariable("group") int groupID,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			Principal principal) {
+		return new WebAsyncTask<ResponseEntity<List<Category>>>(env.getProperty("async.read.timeoutMs", Long.class, 30000L),
+				readRequestExecutor, () -> {
+					WorksheetCatalogue worksheets = passiService.getWorksheets(groupID, principal.getName());
+					HttpHeaders headers = cacheHeaders(ETags.of(worksheets.getVersion()));
+					if (ETags.matches(ifNoneMatch, headers.getETag())) {
+						return new ResponseEntity<List<Category>>(headers, HttpStatus.NOT_MODIFIED);
+					}
+					List<Category> categorizedWorksheets = worksheets.getCategories();
+					if (categorizedWorksheets.size() == 0)
+						throw new WorksheetNotFoundException(groupID);
+					log.debug("getWorksheets() : Categorized worksheets of group {} found for JSON response", groupID);
+					return new ResponseEntity<List<Category>>(categorizedWorksheets, headers, HttpStatus.OK);
+				});
 	}
 
 	/**
-	 * Save student answers.
+	 * Save student answers. Handled asynchronously on the write executor.
+	 * 
+	 * A save still running when the client gets a timeout is not cancelled
+	 * and commits. The client may retry: the unique key refuses a second
+	 * answer, so the retry gets 409 with the first attempt saved.
 	 * 
 	 * @param answersheet JSON from the client
 	 * @return String message, HttpStatus
 	 */
 	@RequestMapping(value = "/answer/", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<String> saveAnswer(@RequestBody Answersheet answersheet, Principal principal) {
+	public WebAsyncTask<ResponseEntity<String>> saveAnswer(@RequestBody Answersheet answersheet, Principal principal) {
+		return new WebAsyncTask<ResponseEntity<String>>(env.getProperty("async.write.timeoutMs", Long.class, 30000L),
+				writeRequestExecutor, () -> saveAnswer(answersheet, principal.getName()));
+	}
+
+	private ResponseEntity<String> saveAnswer(Answersheet answersheet, String username) {
 		String message = new String("");
-		if (!passiService.isCorrectUser(answersheet.getUserID(), principal.getName())) {
+		switch (passiService.saveAnswer(answersheet, username)) {
+		case CREATED:
+			return new ResponseEntity<String>(HttpStatus.CREATED);
+		case INVALID_USER:
 			message = "Invalid userID";
 			return new ResponseEntity<String>(message, HttpStatus.CONFLICT);
-		}
-		if (passiService.isAnswerExist(answersheet.getWorksheetID(), answersheet.getUserID())) {
+		case ALREADY_ANSWERED:
 			message = "User [" + answersheet.getUserID() + "] has already answered to the worksheet ["
 					+ answersheet.getWorksheetID() + "].";
 			return new ResponseEntity<String>(message, HttpStatus.CONFLICT);
-		}
-		if (passiService.saveAnswer(answersheet)) {
-			return new ResponseEntity<String>(HttpStatus.CREATED);
-		} else {
+		default:
 			message = "Save answers interrupted for unknown reason. No changes to database.";
 			return new ResponseEntity<String>(message, HttpStatus.EXPECTATION_FAILED);
 		}
 	}
 
+	/**
+	 * Save several student answers at once, e.g. answers collected offline.
+	 * Each answersheet is checked like in saveAnswer and gets its own result;
+	 * accepted ones are saved in one transaction. Handled asynchronously on
+	 * the write executor. Like saveAnswer, a save still running when the
+	 * client gets a timeout commits, and a retry reports those answersheets
+	 * as already answered.
+	 * 
+	 * @param answersheets JSON array from the client
+	 * @return List of AnswersheetResult as JSON in request order, HttpStatus
+	 */
+	@RequestMapping(value = "/answers/", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+	public WebAsyncTask<ResponseEntity<List<AnswersheetResult>>> saveAnswers(@RequestBody List<Answersheet> answersheets,
+			Principal principal) {
+		return new WebAsyncTask<ResponseEntity<List<AnswersheetResult>>>(
+				env.getProperty("async.write.timeoutMs", Long.class, 30000L), writeRequestExecutor, () -> {
+					List<AnswersheetResult> results = passiService.saveAnswers(answersheets, principal.getName());
+					return new ResponseEntity<List<AnswersheetResult>>(results, HttpStatus.OK);
+				});
+	}
+
 	/**
 	 * Get student answers by worksheetID, groupID and userID.
 	 * 
@@ -231,6 +381,7 @@ public class PassiRestController {
 		if (!passiService.joinUserIntoGroup(key, userID)) {
 			return new ResponseEntity<Void>(HttpStatus.CONFLICT);
 		}
+		passiService.invalidateUser(principal.getName());
 		return new ResponseEntity<Void>(HttpStatus.OK);
 	}
 	
@@ -282,40 +433,92 @@ public class PassiRestController {
 
 	/**
 	 * Single JPEG image file upload as raw binary for high-performance upload
-	 * from mobile client
+	 * from mobile client. The body is streamed to disk, never buffered in memory.
+	 * The body is read on the upload executor, so slow uploads do not hold
+	 * connector threads. The request itself is used only here: once the
+	 * upload times out or fails the body cannot be read anymore, see
+	 * UploadBody. An upload whose body was read in full is stored even if the
+	 * client already got a timeout.
 	 * 
 	 * @param file name without extension (.jpg)
-	 * @param requestEntity raw image binary body content
+	 * @param request raw image binary body content
 	 * @return String message, HttpStatus
 	 */
 	@RequestMapping(value = "/upload/{file}", method = RequestMethod.POST, consumes = MediaType.IMAGE_JPEG_VALUE)
-	public ResponseEntity<String> uploadFileHandler(@PathVariable("file") String file,
-			HttpEntity<byte[]> requestEntity) {
+	public WebAsyncTask<ResponseEntity<String>> uploadFileHandler(@PathVariable("file") String file,
+			HttpServletRequest request, Principal principal) throws IOException {
+		UploadBody body = new UploadBody(request.getInputStream());
+		// Stored content is also available by its hash
+		UriComponentsBuilder location = ServletUriComponentsBuilder.fromContextPath(request).path("/image/{sha256}.jpg");
+		String username = principal.getName();
+		WebAsyncTask<ResponseEntity<String>> task = new WebAsyncTask<ResponseEntity<String>>(
+				env.getProperty("async.upload.timeoutMs", Long.class, 120000L), uploadRequestExecutor,
+				() -> uploadFile(file, body, location, username));
+		task.onCompletion(body::abort);
+		return task;
+	}
+
+	private ResponseEntity<String> uploadFile(String file, UploadBody body, UriComponentsBuilder location,
+			String username) {
 		String message = new String("");
-		if (!file.isEmpty()) {
-			BufferedOutputStream stream = null;
-			try {
-				byte[] payload = requestEntity.getBody();
-				String rootPath = System.getProperty("catalina.home");
-				File dir = new File(rootPath + File.separator + "images");
-				if (!dir.exists()) {
-					dir.mkdirs();
-				}
-				File serverFile = new File(dir.getAbsolutePath() + File.separator + file + ".jpg");
-				BufferedImage image = ImageIO.read(new ByteArrayInputStream(payload));
-				ImageIO.write(image, "JPG", serverFile);
-				message = "You successfully uploaded file " + file + ".jpg.";
-				return new ResponseEntity<String>(message, HttpStatus.OK);
-			} catch (Exception e) {
-				message = "You failed to upload file " + file + ".jpg.";
-				return new ResponseEntity<String>(message, HttpStatus.BAD_REQUEST);
-			} finally {
-				IOUtils.closeQuietly(stream);
-			}
-		} else {
-			message = "You failed to upload " + file + ".jpg because the file was empty.";
+		String sha256;
+		try {
+			sha256 = imageService.saveImage(file, body, username);
+		} catch (IOException e) {
+			message = "You failed to upload file " + file + ".jpg.";
 			return new ResponseEntity<String>(message, HttpStatus.BAD_REQUEST);
 		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setLocation(location.buildAndExpand(sha256).toUri());
+		message = "You successfully uploaded file " + file + ".jpg.";
+		return new ResponseEntity<String>(message, headers, HttpStatus.OK);
+	}
+
+	/**
+	 * Download uploaded JPEG image. Only the user who uploaded the image gets
+	 * it, others get 404. Downscaled variants are made in the background after
+	 * upload; until one exists the original is served. The file is sent by the
+	 * container (sendfile) or with FileChannel.transferTo, with ETag (content
+	 * hash) / Last-Modified validation and single byte range support.
+	 * 
+	 * @param file upload name or content hash, with or without extension, so
+	 * answerpoint image_url can be used as such
+	 * @param size thumb (160 px), screen (1024 px) or original
+	 * @param response JPEG file content, 206 for a range, 304 if client's copy
+	 * is up to date
+	 */
+	@RequestMapping(value = "/image/{file:.+}", method = RequestMethod.GET)
+	public void getImage(@PathVariable("file") String file,
+			@RequestParam(value = "size", defaultValue = "original") String size,
+			HttpServletRequest request, HttpServletResponse response, Principal principal) throws IOException {
+		ImageSize imageSize = ImageSize.fromParameter(size);
+		if (imageSize == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown image size " + size);
+			return;
+		}
+		if (file.toLowerCase().endsWith(".jpg")) {
+			file = file.substring(0, file.length() - 4);
+		}
+		ImageFile image = imageService.getImage(file, imageSize, principal.getName());
+		// A fallback to the original must not be cached in place of the variant
+		String cacheControl = image.getSize() != imageSize ? "private, no-cache"
+				: "private, max-age=" + env.getProperty("images.maxAgeSeconds", Long.class, 3600L);
+		FileDownload.send(image.getPath(), image.getVersion(), MediaType.IMAGE_JPEG_VALUE, cacheControl, request,
+				response);
+	}
+
+	// Changed users are reloaded from database on next authentication
+	private void evictAuthUser(String username) {
+		passiUserDetailsService.evict(username);
+		cachingAuthenticationProvider.evict(username);
+	}
+
+	// Per-user responses may be stored by the client but must be revalidated
+	private static HttpHeaders cacheHeaders(String eTag) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag(eTag);
+		headers.setCacheControl("private, no-cache");
+		return headers;
 	}
 
 	/**
@@ -338,6 +541,53 @@ public class PassiRestController {
 		return new Error("Worksheets for the group [" + group + "] not found.");
 	}
 
+	// .jpg in the path asks for image/jpeg, so the error cannot be sent as JSON
+	@ExceptionHandler(ImageNotFoundException.class)
+	public void imageNotFound(ImageNotFoundException e, HttpServletResponse response) throws IOException {
+		response.sendError(HttpServletResponse.SC_NOT_FOUND, "Image [" + e.getFile() + "] not found");
+	}
+
+	@ExceptionHandler(InvalidImageException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public String invalidImage(InvalidImageException e) {
+		log.debug("invalidImage() : Upload of {} rejected: {}", e.getFile(), e.getMessage());
+		return "You failed to upload file " + e.getFile() + ".jpg: " + e.getMessage() + ".";
+	}
+
+	@ExceptionHandler(TooManyUploadsException.class)
+	public ResponseEntity<String> tooManyUploads(TooManyUploadsException e) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, "5");
+		return new ResponseEntity<String>("Server is busy, upload " + e.getFile() + ".jpg again shortly.", headers,
+				HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	@ExceptionHandler(TaskRejectedException.class)
+	public ResponseEntity<String> executorFull(TaskRejectedException e) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, "5");
+		return new ResponseEntity<String>("Server is busy, try again shortly.", headers, HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * No database connection. With virtual threads executors never reject,
+	 * the wait for a connection in ConnectionLimitingDataSource or the pool
+	 * times out instead (SQLTransientConnectionException), which is answered
+	 * like a full executor. Other connection failures are 503 without
+	 * Retry-After.
+	 */
+	@ExceptionHandler({ CannotGetJdbcConnectionException.class, CannotCreateTransactionException.class })
+	public ResponseEntity<String> noConnection(NestedRuntimeException e) {
+		if (e.contains(SQLTransientConnectionException.class)) {
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.RETRY_AFTER, "5");
+			return new ResponseEntity<String>("Server is busy, try again shortly.", headers,
+					HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		log.error("noConnection() : Database is not available", e);
+		return new ResponseEntity<String>("Database is not available.", HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
 	@ExceptionHandler(EmptyAnswerContentException.class)
 	@ResponseStatus(HttpStatus.NOT_FOUND)
 	public Error emptyAnswerContent(EmptyAnswerContentException e) {
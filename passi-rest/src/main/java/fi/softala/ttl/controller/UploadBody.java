@@ -0,0 +1,63 @@
+package fi.softala.ttl.controller;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body read on an upload worker. When async processing ends, on
+ * timeout, client error or normal completion, abort() is called before the
+ * container recycles the request: later reads fail instead of reading the
+ * body of whatever request reuses the object. A read in progress finishes
+ * first, at most the connector's read timeout.
+ */
+final class UploadBody extends FilterInputStream {
+
+	private boolean aborted;
+
+	UploadBody(InputStream in) {
+		super(in);
+	}
+
+	synchronized void abort() {
+		aborted = true;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		checkAborted();
+		return super.read();
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		checkAborted();
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public synchronized long skip(long n) throws IOException {
+		checkAborted();
+		return super.skip(n);
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		checkAborted();
+		return super.available();
+	}
+
+	// The container closes the stream of a recycled request
+	@Override
+	public synchronized void close() throws IOException {
+		if (!aborted) {
+			super.close();
+		}
+	}
+
+	private void checkAborted() throws IOException {
+		if (aborted) {
+			throw new IOException("Upload aborted, request is complete");
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package fi.softala.ttl.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * DataSource wrapper letting at most a fixed number of connections out at a
+ * time, one permit per connection from getConnection() to close(). With
+ * virtual threads thousands of requests may reach the DAO at once. Sized to
+ * the connection pool, they wait here in arrival order for as long as
+ * permitted instead of failing after the pool's connection timeout.
+ */
+public class ConnectionLimitingDataSource extends DelegatingDataSource {
+
+	private final Semaphore permits;
+	private final long timeoutMillis;
+
+	/**
+	 * @param targetDataSource the connection pool
+	 * @param maxConnections connections out at a time, the pool size
+	 * @param timeoutMillis longest wait for a permit
+	 */
+	public ConnectionLimitingDataSource(DataSource targetDataSource, int maxConnections, long timeoutMillis) {
+		super(targetDataSource);
+		this.permits = new Semaphore(maxConnections, true);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		acquire();
+		try {
+			return limited(getTargetDataSource().getConnection());
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		acquire();
+		try {
+			return limited(getTargetDataSource().getConnection(username, password));
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return threads waiting for a connection
+	 */
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+
+	private void acquire() throws SQLException {
+		try {
+			if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLTransientConnectionException("No connection available in " + timeoutMillis + " ms, "
+						+ permits.getQueueLength() + " waiting");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+		}
+	}
+
+	private Connection limited(Connection target) {
+		return (Connection) Proxy.newProxyInstance(ConnectionLimitingDataSource.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new ConnectionHandler(target));
+	}
+
+	private class ConnectionHandler implements InvocationHandler {
+
+		private final Connection target;
+		private boolean closed;
+
+		ConnectionHandler(Connection target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "close":
+				// Released once, also when the pool fails to close the connection
+				try {
+					return method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getTargetException();
+				} finally {
+					if (!closed) {
+						closed = true;
+						permits.release();
+					}
+				}
+			default:
+				try {
+					return method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getTargetException();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package fi.softala.ttl.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * Bulk insert as multi-row INSERT ... VALUES (...), (...) statements, one
+ * statement per chunk of rows. A plain JDBC batch is sent by most drivers as
+ * one INSERT per row, unless the driver rewrites batches itself.
+ * 
+ * Multi-row VALUES is used only when enabled and for databases known to
+ * support it, detected from JDBC metadata on first use; otherwise the rows go
+ * as a JDBC batch. Chunks are also kept below the bind parameter limit of
+ * MySQL / MariaDB.
+ * 
+ * Values are bound with the given SQL types in both cases, so that nulls do
+ * not depend on the driver guessing a type.
+ */
+public class MultiRowInserter {
+
+	private static final Logger log = LoggerFactory.getLogger(MultiRowInserter.class);
+
+	private static final int MAX_PARAMETERS = 65535;
+	private static final String[] MULTI_ROW_DATABASES = { "MySQL", "MariaDB", "H2", "PostgreSQL",
+			"HSQL Database Engine", "SQLite" };
+
+	private final JdbcTemplate jdbcTemplate;
+	private final int chunkSize;
+	private final boolean enabled;
+	private volatile Boolean multiRow;
+	// Statement text by row template and row count, at most chunk size entries per template
+	private final Map<String, String> statements = new ConcurrentHashMap<>();
+
+	/**
+	 * @param jdbcTemplate
+	 * @param chunkSize rows per statement at most
+	 * @param enabled false to always use JDBC batches
+	 */
+	public MultiRowInserter(JdbcTemplate jdbcTemplate, int chunkSize, boolean enabled) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Insert rows.
+	 * 
+	 * @param insert statement up to VALUES, e.g. "INSERT INTO t (a, b)"
+	 * @param row placeholders of one row, e.g. "(?, COALESCE(?, 0))"
+	 * @param types java.sql.Types of the placeholders of one row
+	 * @param rows parameter values of each row, in placeholder order
+	 * @return int number of inserted rows
+	 */
+	public int insert(String insert, String row, int[] types, List<Object[]> rows) {
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		if (!isMultiRow()) {
+			int[] counts = jdbcTemplate.batchUpdate(insert + " VALUES " + row, rows, types);
+			return counts.length;
+		}
+		int parameters = Math.max(1, countParameters(row));
+		int chunk = Math.min(chunkSize, MAX_PARAMETERS / parameters);
+		int inserted = 0;
+		for (int from = 0; from < rows.size(); from += chunk) {
+			List<Object[]> part = rows.subList(from, Math.min(from + chunk, rows.size()));
+			inserted += jdbcTemplate.update(statement(insert, row, part.size()), new PreparedStatementSetter() {
+
+				@Override
+				public void setValues(PreparedStatement ps) throws SQLException {
+					int index = 1;
+					for (Object[] values : part) {
+						for (int i = 0; i < values.length; i++) {
+							StatementCreatorUtils.setParameterValue(ps, index++, types[i], values[i]);
+						}
+					}
+				}
+			});
+		}
+		return inserted;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isMultiRow() {
+		Boolean supported = multiRow;
+		if (supported == null) {
+			supported = enabled && detect(jdbcTemplate.getDataSource());
+			multiRow = supported;
+		}
+		return supported;
+	}
+
+	private String statement(String insert, String row, int count) {
+		String key = insert + '\u0000' + row + '\u0000' + count;
+		String sql = statements.get(key);
+		if (sql == null) {
+			StringBuilder builder = new StringBuilder(insert.length() + 8 + count * (row.length() + 2));
+			builder.append(insert).append(" VALUES ");
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					builder.append(", ");
+				}
+				builder.append(row);
+			}
+			sql = builder.toString();
+			statements.put(key, sql);
+		}
+		return sql;
+	}
+
+	private static int countParameters(String row) {
+		int count = 0;
+		for (int i = 0; i < row.length(); i++) {
+			if (row.charAt(i) == '?') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static boolean detect(DataSource dataSource) {
+		try {
+			String product = JdbcUtils.commonDatabaseName(
+					(String) JdbcUtils.extractDatabaseMetaData(dataSource, "getDatabaseProductName"));
+			for (String database : MULTI_ROW_DATABASES) {
+				if (database.equalsIgnoreCase(product)) {
+					log.info("detect() : Using multi-row inserts for {}", product);
+					return true;
+				}
+			}
+			log.info("detect() : Multi-row inserts not known to work with {}, using JDBC batches", product);
+		} catch (MetaDataAccessException e) {
+			log.warn("detect() : Could not read database product name, using JDBC batches: {}", e.toString());
+		}
+		return false;
+	}
+}
@@ -3,12 +3,16 @@
  */
 package fi.softala.ttl.dao;
 
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import fi.softala.ttl.model.Answersheet;
 import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.Group;
 import fi.softala.ttl.model.User;
 
 public interface PassiDAO {
@@ -17,30 +21,74 @@ public interface PassiDAO {
 	
 	public User findUser(String username, String email);
 	
+	public User findUserProfile(String username);
+	
+	public List<Group> getUserGroups(String username);
+	
+	public Map<String, List<User>> getGroupInstructors(String username);
+	
+	public boolean isUserExist(String username, String email);
+	
 	public boolean addUser(AuthUser user);
 	
 	public List<Category> getWorksheets(int groupID, String username);
 	
+	public List<Category> getWorksheetCatalogue(int groupID);
+	
+	public Set<Integer> getCompletedWorksheets(int groupID, String username);
+	
 	public boolean isAnswerExist(int worksheetID, int userID);
 	
-	public boolean saveAnswer(Answersheet answersheet);
+	public boolean saveAnswer(Answersheet answersheet, String username);
 	
-	public boolean deleteAnswer(int worksheetID, int userID);
+	public Integer findUserID(String username);
+	
+	public Set<Integer> getAnsweredWorksheets(int userID, Collection<Integer> worksheetIDs);
+	
+	public void saveAnswers(int userID, List<Answersheet> answersheets);
+	
+	public void deleteAnswer(int worksheetID, int userID);
 	
 	public Answersheet getAnswer(int worksheetID, int groupID, int userID);
 	
 	public List<AuthUser> getAuthUsers();
 	
+	public AuthUser findAuthUser(String username);
+	
 	public boolean isGroupExist(String key);
 	
 	public boolean joinUserIntoGroup(String key, int UserID);
 	
 	public Map<Integer, Integer> feedbackCompleteMap(int groupID, int userID);
 	
-	public Map<String, Long> getProgress(String username);
+	public Map<Integer, Map<Integer, Integer>> getFeedbackCompleteMaps(String username);
+	
+	public Map<Integer, Long> getAnsweredCounts(String username);
 	
 	public boolean isCorrectUser(int userID, String username);
 	
 	public Map<String, Object> findUsernameAndPassById(int userID);
 	
+	public String findImageHash(String name, String username);
+	
+	public String findImageOwner(String name);
+	
+	public boolean isImageOwner(String sha256, String username);
+	
+	public boolean isLegacyImageOwner(String name, String username);
+	
+	public Map<String, Object> lockImageName(String name);
+	
+	public void saveImageName(String name, String sha256, String username);
+	
+	public void addImageReference(String sha256, long size);
+	
+	public void releaseImageReference(String sha256);
+	
+	public List<String> getReleasedImages(Timestamp releasedBefore);
+	
+	public boolean lockReleasedImage(String sha256);
+	
+	public boolean deleteReleasedImage(String sha256);
+	
 }
\ No newline at end of file
@@ -4,38 +4,36 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
-import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.PlatformTransactionManager;
-import org.springframework.transaction.TransactionStatus;
-import org.springframework.transaction.support.DefaultTransactionDefinition;
 
-import fi.softala.ttl.model.Option;
 import fi.softala.ttl.model.Answerpoint;
 import fi.softala.ttl.model.Answersheet;
 import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.model.Category;
 import fi.softala.ttl.model.Group;
 import fi.softala.ttl.model.User;
-import fi.softala.ttl.model.Waypoint;
-import fi.softala.ttl.model.Worksheet;
 
 /**
  * @author Mika Ropponen | mika.ropponen@gmail.com
@@ -43,8 +41,17 @@ import fi.softala.ttl.model.Worksheet;
 @Component
 public class PassiDAOImpl implements PassiDAO {
 	
+	private static final Logger log = LoggerFactory.getLogger(PassiDAOImpl.class);
+	
 	private static final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
 
+	private static final String INSERT_ANSWERPOINTS = "INSERT INTO answerpoints (answer_text, instructor_comment, image_url, answersheet_id, waypoint_id, option_id)";
+	private static final String ANSWERPOINT_VALUES = "(?, ?, ?, ?, ?, ?)";
+	private static final int[] ANSWERPOINT_TYPES = { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+			Types.INTEGER, Types.INTEGER };
+	private static final int[] ANSWERSHEET_TYPES = { Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.INTEGER,
+			Types.INTEGER, Types.INTEGER };
+
 	@Inject
 	private JdbcTemplate jdbcTemplate;
 
@@ -55,9 +62,14 @@ public class PassiDAOImpl implements PassiDAO {
 	public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
 		this.jdbcTemplate = jdbcTemplate;
 	}
+	
+	// Bulk inserts of answersheets and answerpoints
+	@Inject
+	private MultiRowInserter multiRowInserter;
 
-	@Autowired
-	private PlatformTransactionManager platformTransactionManager;
+	public void setMultiRowInserter(MultiRowInserter multiRowInserter) {
+		this.multiRowInserter = multiRowInserter;
+	}
 
 	// Find and return user with all related data using only username
 	public User findUser(String username) {
@@ -66,36 +78,37 @@ public class PassiDAOImpl implements PassiDAO {
 	
 	// Find and return user with all related data using username or email
 	public User findUser(String username, String email) {
-		final String SQL1 = email == null ? 
+		final String SQL = email == null ? 
 				"SELECT user_id, username, firstname, lastname, email FROM users WHERE username = ?" : 
 				"SELECT user_id, username, firstname, lastname, email FROM users WHERE username = ? OR email = ?";
 		
-		User user = jdbcTemplate.query(SQL1, email == null ? new Object[] { username } : new Object[] { username, email }, 
-				new ResultSetExtractor<User>() {
-
-			@Override
-			public User extractData(ResultSet rs) throws SQLException, DataAccessException {
-				if (rs.next()) {
-					User user = new User();
-					user.setUserID(rs.getInt("user_id"));
-					user.setUsername(rs.getString("username"));
-					user.setFirstname(rs.getString("firstname"));
-					user.setLastname(rs.getString("lastname"));
-					user.setEmail(rs.getString("email"));
-					return user;
-				}
-				return null;
-			}
-		});
+		List<User> users = jdbcTemplate.query(SQL, email == null ? new Object[] { username } : new Object[] { username, email }, 
+				new UserRowMapper());
 		
-		if (user == null) {
+		if (users.isEmpty()) {
 			return null;
 		}
 		
-		final String SQL2 = "SELECT groups.group_id, groups.group_name FROM groups "
+		User user = users.get(0);
+		user.setGroups(withInstructors(getUserGroups(user.getUsername()), getGroupInstructors(user.getUsername())));
+		return user;
+	}
+
+	// Find user without related data, see getUserGroups() and getGroupInstructors()
+	@Override
+	public User findUserProfile(String username) {
+		final String SQL = "SELECT user_id, username, firstname, lastname, email FROM users WHERE username = ?";
+		List<User> users = jdbcTemplate.query(SQL, new Object[] { username }, new UserRowMapper());
+		return users.isEmpty() ? null : users.get(0);
+	}
+
+	// Groups of the user, instructors not set
+	@Override
+	public List<Group> getUserGroups(String username) {
+		final String SQL = "SELECT groups.group_id, groups.group_name FROM groups "
 				+ "JOIN members ON members.group_id = groups.group_id "
-				+ "JOIN users ON members.user_id = users.user_id " + "WHERE users.user_id = ?";
-		List<Group> groups = jdbcTemplate.query(SQL2, new Object[] { user.getUserID() }, new RowMapper<Group>() {
+				+ "JOIN users ON members.user_id = users.user_id " + "WHERE users.username = ?";
+		return jdbcTemplate.query(SQL, new Object[] { username }, new RowMapper<Group>() {
 
 			@Override
 			public Group mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -105,31 +118,66 @@ public class PassiDAOImpl implements PassiDAO {
 				return group;
 			}
 		});
-		
-		user.setGroups(groups);
-		
-		final String SQL3 = "SELECT users.user_id, users.firstname, users.lastname, users.email FROM users "
+	}
+
+	// Instructors of all the user's groups at once, grouped by group ID in memory
+	@Override
+	public Map<String, List<User>> getGroupInstructors(String username) {
+		final String SQL = "SELECT members.group_id, users.user_id, users.firstname, users.lastname, users.email FROM users "
 				+ "JOIN members ON members.user_id = users.user_id "
 				+ "JOIN user_role ON user_role.user_id = users.user_id "
-				+ "WHERE user_role.role_id = 2 AND members.group_id = ?";
+				+ "WHERE user_role.role_id = 2 AND members.group_id IN "
+				+ "(SELECT members.group_id FROM members JOIN users ON users.user_id = members.user_id WHERE users.username = ?)";
 		
-		for (Group group : user.getGroups()) {
-			List<User> instructors = jdbcTemplate.query(SQL3, new Object[] { group.getGroupID() },
-					new RowMapper<User>() {
+		final Map<String, List<User>> instructors = new HashMap<>();
+		final MemberRowMapper memberRowMapper = new MemberRowMapper();
+		jdbcTemplate.query(SQL, new Object[] { username }, new RowCallbackHandler() {
 
-						@Override
-						public User mapRow(ResultSet rs, int rowNum) throws SQLException {
-							User user = new User();
-							user.setUserID(rs.getInt("user_id"));
-							user.setFirstname(rs.getString("firstname"));
-							user.setLastname(rs.getString("lastname"));
-							user.setEmail(rs.getString("email"));
-							return user;
-						}
-					});
-			group.setGroupInstructors(instructors);
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				List<User> groupInstructors = instructors.get(rs.getString("group_id"));
+				if (groupInstructors == null) {
+					groupInstructors = new ArrayList<>();
+					instructors.put(rs.getString("group_id"), groupInstructors);
+				}
+				groupInstructors.add(memberRowMapper.mapRow(rs, groupInstructors.size()));
+			}
+		});
+		return instructors;
+	}
+
+	// Set instructors of groups from getGroupInstructors()
+	private static List<Group> withInstructors(List<Group> groups, Map<String, List<User>> instructors) {
+		for (Group group : groups) {
+			List<User> groupInstructors = instructors.get(group.getGroupID());
+			group.setGroupInstructors(groupInstructors != null ? groupInstructors : new ArrayList<>());
 		}
-		return user;
+		return groups;
+	}
+
+	private static class UserRowMapper implements RowMapper<User> {
+
+		@Override
+		public User mapRow(ResultSet rs, int rowNum) throws SQLException {
+			User user = new User();
+			user.setUserID(rs.getInt("user_id"));
+			user.setUsername(rs.getString("username"));
+			user.setFirstname(rs.getString("firstname"));
+			user.setLastname(rs.getString("lastname"));
+			user.setEmail(rs.getString("email"));
+			return user;
+		}
+	}
+
+	// Check if username or email is already taken, no related data is loaded
+	@Override
+	public boolean isUserExist(String username, String email) {
+		final String SQL = "SELECT EXISTS (SELECT 1 FROM users WHERE username = ? OR email = ?)";
+		int exists = jdbcTemplate.queryForObject(SQL, new Object[] { username, email }, Integer.class);
+		if (exists == 1) {
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -171,85 +219,51 @@ public class PassiDAOImpl implements PassiDAO {
 		return true;
 	}
 
-	// Get worksheets by group ID
+	// Get worksheets by group ID with one joined query, tree built in WorksheetTreeExtractor
 	public List<Category> getWorksheets(int groupID, String username) {
 
-		final String SQL1 = "SELECT categories.category_id, categories.category_name FROM categories";
-
-		List<Category> categories = jdbcTemplate.query(SQL1, new RowMapper<Category>() {
-
-			@Override
-			public Category mapRow(ResultSet rs, int rowNum) throws SQLException {
-				Category category = new Category();
-				category.setCategoryID(rs.getInt("category_id"));
-				category.setCategoryName(rs.getString("category_name"));
-				return category;
-			}
-		});
-
-		final String SQL2 = "SELECT worksheets.worksheet_id, worksheets.header, worksheets.preface, worksheets.planning, (SELECT COUNT(*) FROM answersheets WHERE group_id = ? AND user_id = (SELECT user_id FROM users WHERE username = ?) AND worksheet_id = worksheets.worksheet_id) AS completed FROM worksheets JOIN distros ON distros.worksheet_id = worksheets.worksheet_id JOIN categories ON worksheets.category_id = categories.category_id WHERE distros.group_id = ? AND categories.category_id = ?";
-				
-				for (Category category : categories) {
-
-			List<Worksheet> worksheets = new ArrayList<>();
-			worksheets = jdbcTemplate.query(SQL2, new Object[] { groupID, username, groupID, category.getCategoryID() },
-					new RowMapper<Worksheet>() {
-
-						@Override
-						public Worksheet mapRow(ResultSet rs, int rowNum) throws SQLException {
-							Worksheet worksheet = new Worksheet();
-							worksheet.setWorksheetID(rs.getInt("worksheet_id"));
-							worksheet.setWorksheetHeader(rs.getString("header"));
-							worksheet.setWorksheetPreface(rs.getString("preface"));
-							worksheet.setWorksheetPlanning(rs.getString("planning"));
-							if (rs.getInt("completed") > 0) {
-								worksheet.setWorksheetCompleted(true);
-							}
-							return worksheet;
-						}
-					});
+		final String SQL = "SELECT categories.category_id, categories.category_name, "
+				+ "worksheets.worksheet_id, worksheets.header, worksheets.preface, worksheets.planning, "
+				+ "(CASE WHEN answered.worksheet_id IS NULL THEN 0 ELSE 1 END) AS completed, "
+				+ "waypoints.waypoint_id, waypoints.task, waypoints.photo_enabled, "
+				+ "options.option_id, options.option_text "
+				+ "FROM categories "
+				+ "LEFT JOIN (worksheets JOIN distros ON distros.worksheet_id = worksheets.worksheet_id AND distros.group_id = ?) "
+				+ "ON worksheets.category_id = categories.category_id "
+				+ "LEFT JOIN (SELECT DISTINCT answersheets.worksheet_id FROM answersheets "
+				+ "JOIN users ON users.user_id = answersheets.user_id "
+				+ "WHERE answersheets.group_id = ? AND users.username = ?) answered "
+				+ "ON answered.worksheet_id = worksheets.worksheet_id "
+				+ "LEFT JOIN waypoints ON waypoints.worksheet_id = worksheets.worksheet_id "
+				+ "LEFT JOIN options ON options.waypoint_id = waypoints.waypoint_id "
+				+ "ORDER BY categories.category_id, worksheets.worksheet_id, waypoints.waypoint_id, options.option_id";
+
+		return jdbcTemplate.query(SQL, new Object[] { groupID, groupID, username }, new WorksheetTreeExtractor());
+	}
 
-			final String SQL3 = "SELECT waypoint_id, task, photo_enabled FROM waypoints WHERE worksheet_id = ?";
-
-			List<Waypoint> waypoints = new ArrayList<>();
-			for (Worksheet worksheet : worksheets) {
-				waypoints = jdbcTemplate.query(SQL3, new Object[] { worksheet.getWorksheetID() },
-						new RowMapper<Waypoint>() {
-
-							@Override
-							public Waypoint mapRow(ResultSet rs, int rowNum) throws SQLException {
-								Waypoint waypoint = new Waypoint();
-								waypoint.setWaypointID(rs.getInt("waypoint_id"));
-								waypoint.setWaypointTask(rs.getString("task"));
-								waypoint.setWaypointPhotoEnabled(rs.getBoolean("photo_enabled"));
-								return waypoint;
-							}
-						});
-				worksheet.setWorksheetWaypoints(waypoints);
-			}
+	// Get worksheet catalogue of a group without user specific completion flags
+	public List<Category> getWorksheetCatalogue(int groupID) {
+
+		final String SQL = "SELECT categories.category_id, categories.category_name, "
+				+ "worksheets.worksheet_id, worksheets.header, worksheets.preface, worksheets.planning, 0 AS completed, "
+				+ "waypoints.waypoint_id, waypoints.task, waypoints.photo_enabled, "
+				+ "options.option_id, options.option_text "
+				+ "FROM categories "
+				+ "LEFT JOIN (worksheets JOIN distros ON distros.worksheet_id = worksheets.worksheet_id AND distros.group_id = ?) "
+				+ "ON worksheets.category_id = categories.category_id "
+				+ "LEFT JOIN waypoints ON waypoints.worksheet_id = worksheets.worksheet_id "
+				+ "LEFT JOIN options ON options.waypoint_id = waypoints.waypoint_id "
+				+ "ORDER BY categories.category_id, worksheets.worksheet_id, waypoints.waypoint_id, options.option_id";
+
+		return jdbcTemplate.query(SQL, new Object[] { groupID }, new WorksheetTreeExtractor());
+	}
 
-			final String SQL4 = "SELECT option_id, option_text FROM options WHERE waypoint_id = ?";
-
-			List<Option> options = null;
-			for (Worksheet worksheet : worksheets) {
-				for (Waypoint waypoint : worksheet.getWorksheetWaypoints()) {
-					options = jdbcTemplate.query(SQL4, new Object[] { waypoint.getWaypointID() },
-							new RowMapper<Option>() {
-
-								@Override
-								public Option mapRow(ResultSet rs, int rowNum) throws SQLException {
-									Option option = new Option();
-									option.setOptionID(rs.getInt("option_id"));
-									option.setOptionText(rs.getString("option_text"));
-									return option;
-								}
-							});
-					waypoint.setWaypointOptions(options);
-				}
-			}
-			category.setCategoryWorksheets((ArrayList<Worksheet>) worksheets);
-		}
-		return categories;
+	// Get IDs of the worksheets the user has answered in a group
+	public Set<Integer> getCompletedWorksheets(int groupID, String username) {
+		final String SQL = "SELECT progress.worksheet_id FROM progress "
+				+ "JOIN users ON users.user_id = progress.user_id "
+				+ "WHERE users.username = ? AND progress.group_id = ?";
+		return new HashSet<>(jdbcTemplate.queryForList(SQL, new Object[] { username, groupID }, Integer.class));
 	}
 
 	// Check if user has already answered to the worksheet
@@ -262,105 +276,187 @@ public class PassiDAOImpl implements PassiDAO {
 		return false;
 	}
 	
-	public Map<String, Long> getProgress(String username) {
-		Map<String, Long> progress = new HashMap<>();
-		
-		final String SQL = "SELECT (SELECT COUNT(*) FROM answersheets WHERE user_id = (SELECT user_id FROM users WHERE username = ?)) AS completed, COUNT(*) AS total FROM worksheets";
-		for (Map m : jdbcTemplate.queryForList(SQL, new Object[] { username })) {
-			progress = m;
-		}
-		return progress;
+	// Answered worksheets in each group of the user, a primary key range of the progress summary per group
+	public Map<Integer, Long> getAnsweredCounts(String username) {
+		final String SQL = "SELECT members.group_id, COUNT(progress.worksheet_id) AS answered FROM members "
+				+ "JOIN users ON users.user_id = members.user_id "
+				+ "LEFT JOIN progress ON progress.user_id = members.user_id AND progress.group_id = members.group_id "
+				+ "WHERE users.username = ? GROUP BY members.group_id";
+		final Map<Integer, Long> answered = new HashMap<>();
+		jdbcTemplate.query(SQL, new Object[] { username }, new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				answered.put(rs.getInt("group_id"), rs.getLong("answered"));
+			}
+		});
+		return answered;
+	}
+
+	// Delete answer, releasing the images only it refers to. Runs in the caller's transaction.
+	public void deleteAnswer(int worksheetID, int userID) {
+		// Images of the answer, released below
+		final String SQL_IMAGES = "SELECT DISTINCT image_url FROM answerpoints WHERE image_url IS NOT NULL "
+				+ "AND answersheet_id = (SELECT answersheet_id FROM answersheets WHERE worksheet_id = ? AND user_id = ?)";
+		List<String> imageURLs = jdbcTemplate.queryForList(SQL_IMAGES, new Object[] { worksheetID, userID }, String.class);
+		// Delete related waypoints
+		final String SQL1 = "DELETE FROM answerpoints WHERE answersheet_id = (SELECT answersheet_id FROM answersheets WHERE worksheet_id = ? AND user_id = ?)";
+		jdbcTemplate.update(SQL1, new Object[] { worksheetID, userID });
+		// Delete related answer, its trigger removes it from the progress summary
+		final String SQL2 = "DELETE FROM answersheets WHERE worksheet_id = ? AND user_id = ?";
+		jdbcTemplate.update(SQL2, new Object[] { worksheetID, userID });
+		releaseImageNames(imageURLs, userID);
 	}
 	
-	// Delete answer
-	public boolean deleteAnswer(int worksheetID, int userID) {
-		DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
-		TransactionStatus status = platformTransactionManager.getTransaction(paramTransactionDefinition);
-		try {
-			// Delete related waypoints
-			final String SQL1 = "DELETE FROM answerpoints WHERE answersheet_id = (SELECT answersheet_id FROM answersheets WHERE worksheet_id = ? AND user_id = ?)";
-			jdbcTemplate.update(SQL1, new Object[] { worksheetID, userID });
-			// Delete related answer
-			final String SQL2 = "DELETE FROM answersheets WHERE worksheet_id = ? AND user_id = ?";
-			jdbcTemplate.update(SQL2, new Object[] { worksheetID, userID });
-			// Commit transactions
-			platformTransactionManager.commit(status);
-		} catch (Exception e) {
-			platformTransactionManager.rollback(status);
-			return false;
+	// Drop the user's upload names no answer refers to anymore, releasing their images
+	private void releaseImageNames(List<String> imageURLs, int userID) {
+		final String SQL_USED = "SELECT EXISTS (SELECT 1 FROM answerpoints WHERE image_url IN (?, ?))";
+		final String SQL_LOCK = "SELECT sha256 FROM image_names WHERE name = ? AND user_id = ? FOR UPDATE";
+		final String SQL_DELETE = "DELETE FROM image_names WHERE name = ?";
+		for (String imageURL : imageURLs) {
+			String name = imageURL.toLowerCase().endsWith(".jpg") ? imageURL.substring(0, imageURL.length() - 4) : imageURL;
+			if (jdbcTemplate.queryForObject(SQL_USED, new Object[] { name, name + ".jpg" }, Integer.class) == 1) {
+				continue;
+			}
+			List<String> hashes = jdbcTemplate.queryForList(SQL_LOCK, new Object[] { name, userID }, String.class);
+			if (!hashes.isEmpty()) {
+				jdbcTemplate.update(SQL_DELETE, name);
+				releaseImageReference(hashes.get(0));
+			}
 		}
-		return true;
 	}
-	
+
 	public Map<String, Object> findUsernameAndPassById(int userID) {
 		Map<String, Object> userMap = new HashMap<>();
-		String SQL = "SELECT username, password FROM users JOIN user_role USING (user_id) WHERE user_id = ? AND role_id = 1";
+		String SQL = "SELECT username, password FROM users JOIN user_role USING (user_id) WHERE users.user_id = ? AND role_id = 1";
 		try {
 			userMap = jdbcTemplate.queryForMap(SQL, new Object[] { userID });
 		} catch (Exception ex) {
-			System.out.println(ex);
+			log.warn("findUsernameAndPassById() : User {} not found: {}", userID, ex.toString());
 		}
 		return userMap;
 	}
 
 	// Save user answer
-	public boolean saveAnswer(Answersheet answersheet) {
+	/**
+	 * Insert answersheet and its answerpoints in two statements, the insert
+	 * trigger adds it to the progress summary. The sheet is inserted only if
+	 * userID belongs to username; a second sheet for the same worksheet and
+	 * user fails with DuplicateKeyException (unique key
+	 * uq_answersheets_worksheet_user). Runs in the caller's transaction.
+	 * 
+	 * @param answersheet
+	 * @param username signed in user
+	 * @return boolean false if userID is not username's
+	 */
+	public boolean saveAnswer(Answersheet answersheet, String username) {
 		
-		final String SQL1 = "INSERT INTO answersheets (answersheet_id, planning, instructor_comment, timestamp, worksheet_id, group_id, user_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
-		final String SQL2 = "INSERT INTO answerpoints (answerpoint_id, answer_text, instructor_comment, image_url, answersheet_id, waypoint_id, option_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+		final String SQL1 = "INSERT INTO answersheets (planning, instructor_comment, timestamp, worksheet_id, group_id, user_id) "
+				+ "SELECT ?, ?, COALESCE(?, CURRENT_TIMESTAMP), ?, ?, user_id FROM users WHERE user_id = ? AND username = ?";
 		
 		KeyHolder keyHolder = new GeneratedKeyHolder();
 
-		DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
-		TransactionStatus status = platformTransactionManager.getTransaction(paramTransactionDefinition);
-		try {
-			jdbcTemplate.update(new PreparedStatementCreator() {
+		int inserted = jdbcTemplate.update(new PreparedStatementCreator() {
+
+			public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+				PreparedStatement ps = connection.prepareStatement(SQL1, new String[] { "answersheet_id" });
+				ps.setString(1, answersheet.getPlanning());
+				ps.setString(2, answersheet.getInstructorComment());
+				ps.setTimestamp(3, answersheet.getTimestamp());
+				ps.setInt(4, answersheet.getWorksheetID());
+				ps.setInt(5, answersheet.getGroupID());
+				ps.setInt(6, answersheet.getUserID());
+				ps.setString(7, username);
+				return ps;
+			}
+		}, keyHolder);
+		if (inserted == 0) {
+			return false;
+		}
 
-				public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
-					PreparedStatement ps = connection.prepareStatement(SQL1, new String[] { "answersheet_id" });
-					ps.setInt(1, Types.NULL);
-					ps.setString(2, answersheet.getPlanning());
-					ps.setString(3, answersheet.getInstructorComment());
-					ps.setTimestamp(4, answersheet.getTimestamp());
-					ps.setInt(5, answersheet.getWorksheetID());
-					ps.setInt(6, answersheet.getGroupID());
-					ps.setInt(7, answersheet.getUserID());
-					return ps;
-				}
-			}, keyHolder);
+		final int ID = keyHolder.getKey().intValue();
+		answersheet.setAnswersheetID(ID);
+		List<Object[]> answerpoints = new ArrayList<>();
+		if (answersheet.getAnswerpoints() != null) {
+			for (Answerpoint answerpoint : answersheet.getAnswerpoints()) {
+				answerpoints.add(answerpointValues(answerpoint, ID));
+			}
+		}
+		multiRowInserter.insert(INSERT_ANSWERPOINTS, ANSWERPOINT_VALUES, ANSWERPOINT_TYPES, answerpoints);
 
-			final int ID = keyHolder.getKey().intValue();
-			answersheet.setAnswersheetID(ID);
-
-			jdbcTemplate.batchUpdate(SQL2, new BatchPreparedStatementSetter() {
-
-				@Override
-				public void setValues(PreparedStatement ps, int i) throws SQLException {
-					Answerpoint answerpoint = answersheet.getAnswerpoints().get(i);
-					ps.setInt(1, Types.NULL);
-					ps.setString(2, answerpoint.getAnswerText());
-					ps.setString(3, answerpoint.getInstructorComment());
-					ps.setString(4, answerpoint.getImageURL());
-					ps.setInt(5, ID);
-					ps.setInt(6, answerpoint.getWaypointID());
-					ps.setInt(7, answerpoint.getOptionID());
-				}
+		return true;
+	}
+
+	public Integer findUserID(String username) {
+		final String SQL = "SELECT user_id FROM users WHERE username = ?";
+		List<Integer> ids = jdbcTemplate.queryForList(SQL, new Object[] { username }, Integer.class);
+		return ids.isEmpty() ? null : ids.get(0);
+	}
+
+	public Set<Integer> getAnsweredWorksheets(int userID, Collection<Integer> worksheetIDs) {
+		if (worksheetIDs.isEmpty()) {
+			return new HashSet<>();
+		}
+		final String SQL = "SELECT worksheet_id FROM answersheets WHERE user_id = ? AND worksheet_id IN ("
+				+ String.join(", ", Collections.nCopies(worksheetIDs.size(), "?")) + ")";
+		List<Object> args = new ArrayList<>();
+		args.add(userID);
+		args.addAll(worksheetIDs);
+		return new HashSet<>(jdbcTemplate.queryForList(SQL, args.toArray(), Integer.class));
+	}
+
+	/**
+	 * Insert answersheets of one user with their answerpoints: multi-row inserts
+	 * for the sheets, one query for their generated IDs and multi-row inserts
+	 * for all points.
+	 * Runs in the caller's transaction, errors propagate for rollback. Sets
+	 * answersheetID of each sheet.
+	 * 
+	 * @param userID owner of all sheets
+	 * @param answersheets at most one per worksheet, none answered before
+	 */
+	public void saveAnswers(int userID, List<Answersheet> answersheets) {
+		if (answersheets.isEmpty()) {
+			return;
+		}
+		final String SQL1 = "INSERT INTO answersheets (planning, instructor_comment, timestamp, worksheet_id, group_id, user_id)";
+		final String SQL2 = "SELECT worksheet_id, answersheet_id FROM answersheets WHERE user_id = ? AND worksheet_id IN ("
+				+ String.join(", ", Collections.nCopies(answersheets.size(), "?")) + ")";
+
+		List<Object[]> sheets = new ArrayList<>();
+		List<Object> args = new ArrayList<>();
+		args.add(userID);
+		for (Answersheet answersheet : answersheets) {
+			sheets.add(new Object[] { answersheet.getPlanning(), answersheet.getInstructorComment(),
+					answersheet.getTimestamp(), answersheet.getWorksheetID(), answersheet.getGroupID(), userID });
+			args.add(answersheet.getWorksheetID());
+		}
+		multiRowInserter.insert(SQL1, "(?, ?, COALESCE(?, CURRENT_TIMESTAMP), ?, ?, ?)", ANSWERSHEET_TYPES, sheets);
 
-				@Override
-				public int getBatchSize() {
-					return answersheet.getAnswerpoints().size();
+		final Map<Integer, Integer> ids = new HashMap<>();
+		jdbcTemplate.query(SQL2, args.toArray(), new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				ids.put(rs.getInt("worksheet_id"), rs.getInt("answersheet_id"));
+			}
+		});
+		List<Object[]> answerpoints = new ArrayList<>();
+		for (Answersheet answersheet : answersheets) {
+			int answersheetID = ids.get(answersheet.getWorksheetID());
+			answersheet.setAnswersheetID(answersheetID);
+			if (answersheet.getAnswerpoints() != null) {
+				for (Answerpoint answerpoint : answersheet.getAnswerpoints()) {
+					answerpoints.add(answerpointValues(answerpoint, answersheetID));
 				}
-			});
-			
-			platformTransactionManager.commit(status);
-			
-		} catch (Exception e) {
-			
-			platformTransactionManager.rollback(status);
-			return false;
+			}
 		}
-		
-		return true;
+		multiRowInserter.insert(INSERT_ANSWERPOINTS, ANSWERPOINT_VALUES, ANSWERPOINT_TYPES, answerpoints);
+	}
+
+	private static Object[] answerpointValues(Answerpoint answerpoint, int answersheetID) {
+		return new Object[] { answerpoint.getAnswerText(), answerpoint.getInstructorComment(),
+				answerpoint.getImageURL(), answersheetID, answerpoint.getWaypointID(), answerpoint.getOptionID() };
 	}
 
 	public Answersheet getAnswer(int worksheetID, int groupID, int userID) {
@@ -442,6 +538,25 @@ public class PassiDAOImpl implements PassiDAO {
 		return authUsers;
 	}
 
+	// Get one authentication user (username, BCrypt hash) or null if not found
+	@Override
+	public AuthUser findAuthUser(String username) {
+		final String SQL = "SELECT username, password FROM users "
+				+ "JOIN user_role ON users.user_id = user_role.user_id "
+				+ "WHERE role_id = 1 AND username = ?";
+		List<AuthUser> authUsers = jdbcTemplate.query(SQL, new Object[] { username }, new RowMapper<AuthUser>() {
+
+			@Override
+			public AuthUser mapRow(ResultSet rs, int rowNum) throws SQLException {
+				AuthUser authUser = new AuthUser();
+				authUser.setUsername(rs.getString("username"));
+				authUser.setPassword(rs.getString("password"));
+				return authUser;
+			}
+		});
+		return authUsers.isEmpty() ? null : authUsers.get(0);
+	}
+
 	@Override
 	public boolean isGroupExist(String key) {
 		final String SQL = "SELECT EXISTS (SELECT 1 FROM groups WHERE group_key = ?)";
@@ -467,19 +582,111 @@ public class PassiDAOImpl implements PassiDAO {
 
 	@Override
 	public Map<Integer, Integer> feedbackCompleteMap(int groupID, int userID) {
-		final String SQL = "SELECT worksheet_id, feedback_complete FROM answersheets WHERE group_id = ? AND user_id = ?";
-		Map<Integer, Integer> feedbackCompleteMap = new HashMap<>();
-		feedbackCompleteMap = jdbcTemplate.query(SQL, new Object[] { groupID, userID }, new ResultSetExtractor<Map<Integer, Integer>>() {
-			
-			 @Override
-			 public Map<Integer, Integer> extractData(ResultSet rs) throws SQLException, DataAccessException {
-				 HashMap<Integer, Integer> map = new HashMap<>();
-			     while(rs.next()){
-			         map.put(rs.getInt("worksheet_id"), rs.getInt("feedback_complete"));
-			     }
-			     return map;
-			 }
+		final String SQL = "SELECT worksheet_id, feedback_complete FROM progress WHERE user_id = ? AND group_id = ?";
+		final Map<Integer, Integer> map = new HashMap<>();
+		jdbcTemplate.query(SQL, new Object[] { userID, groupID }, new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				map.put(rs.getInt("worksheet_id"), rs.getInt("feedback_complete"));
+			}
 		});
-		return feedbackCompleteMap;
+		return map;
+	}
+
+	// Feedback complete maps of all the user's groups by group ID in one query
+	@Override
+	public Map<Integer, Map<Integer, Integer>> getFeedbackCompleteMaps(String username) {
+		final String SQL = "SELECT progress.group_id, progress.worksheet_id, progress.feedback_complete FROM progress "
+				+ "JOIN users ON users.user_id = progress.user_id WHERE users.username = ?";
+		final Map<Integer, Map<Integer, Integer>> maps = new HashMap<>();
+		jdbcTemplate.query(SQL, new Object[] { username }, new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				maps.computeIfAbsent(rs.getInt("group_id"), groupID -> new HashMap<>())
+						.put(rs.getInt("worksheet_id"), rs.getInt("feedback_complete"));
+			}
+		});
+		return maps;
+	}
+
+	// Image store bookkeeping. These run inside service transactions, errors
+	// propagate so that the service transaction rolls back.
+
+	// Hash of an upload name owned by the user
+	public String findImageHash(String name, String username) {
+		final String SQL = "SELECT image_names.sha256 FROM image_names "
+				+ "JOIN users ON users.user_id = image_names.user_id WHERE image_names.name = ? AND users.username = ?";
+		List<String> hashes = jdbcTemplate.queryForList(SQL, new Object[] { name, username }, String.class);
+		return hashes.isEmpty() ? null : hashes.get(0);
+	}
+
+	// Username of the owner of an upload name, null if none
+	public String findImageOwner(String name) {
+		final String SQL = "SELECT users.username FROM image_names "
+				+ "JOIN users ON users.user_id = image_names.user_id WHERE image_names.name = ?";
+		List<String> owners = jdbcTemplate.queryForList(SQL, new Object[] { name }, String.class);
+		return owners.isEmpty() ? null : owners.get(0);
+	}
+
+	// Check if the user owns an upload name of the stored image
+	public boolean isImageOwner(String sha256, String username) {
+		final String SQL = "SELECT EXISTS (SELECT 1 FROM image_names "
+				+ "JOIN users ON users.user_id = image_names.user_id WHERE image_names.sha256 = ? AND users.username = ?)";
+		return jdbcTemplate.queryForObject(SQL, new Object[] { sha256, username }, Integer.class) == 1;
+	}
+
+	// Check if an image uploaded before the image store is in the user's answers
+	public boolean isLegacyImageOwner(String name, String username) {
+		final String SQL = "SELECT EXISTS (SELECT 1 FROM answerpoints "
+				+ "JOIN answersheets ON answersheets.answersheet_id = answerpoints.answersheet_id "
+				+ "JOIN users ON users.user_id = answersheets.user_id "
+				+ "WHERE answerpoints.image_url IN (?, ?) AND users.username = ?)";
+		return jdbcTemplate.queryForObject(SQL, new Object[] { name, name + ".jpg", username }, Integer.class) == 1;
+	}
+
+	// Hash and owner's username of an upload name, locked until end of transaction
+	public Map<String, Object> lockImageName(String name) {
+		final String SQL = "SELECT image_names.sha256, users.username FROM image_names "
+				+ "LEFT JOIN users ON users.user_id = image_names.user_id WHERE image_names.name = ? FOR UPDATE";
+		List<Map<String, Object>> rows = jdbcTemplate.queryForList(SQL, name);
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+	public void saveImageName(String name, String sha256, String username) {
+		final String SQL = "INSERT INTO image_names (name, sha256, user_id) "
+				+ "VALUES (?, ?, (SELECT user_id FROM users WHERE username = ?)) "
+				+ "ON DUPLICATE KEY UPDATE sha256 = VALUES(sha256), user_id = VALUES(user_id)";
+		jdbcTemplate.update(SQL, name, sha256, username);
+	}
+
+	public void addImageReference(String sha256, long size) {
+		final String SQL = "INSERT INTO images (sha256, size, ref_count) VALUES (?, ?, 1) "
+				+ "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1, released = NULL";
+		jdbcTemplate.update(SQL, sha256, size);
+	}
+
+	public void releaseImageReference(String sha256) {
+		// released first, MySQL evaluates SET assignments left to right
+		final String SQL = "UPDATE images SET released = CASE WHEN ref_count <= 1 THEN CURRENT_TIMESTAMP ELSE NULL END, "
+				+ "ref_count = ref_count - 1 WHERE sha256 = ? AND ref_count > 0";
+		jdbcTemplate.update(SQL, sha256);
+	}
+
+	public List<String> getReleasedImages(Timestamp releasedBefore) {
+		final String SQL = "SELECT sha256 FROM images WHERE ref_count = 0 AND released < ?";
+		return jdbcTemplate.queryForList(SQL, new Object[] { releasedBefore }, String.class);
+	}
+
+	// Lock an image without references, an upload of the same content waits for the lock
+	public boolean lockReleasedImage(String sha256) {
+		final String SQL = "SELECT sha256 FROM images WHERE sha256 = ? AND ref_count = 0 FOR UPDATE";
+		return !jdbcTemplate.queryForList(SQL, new Object[] { sha256 }, String.class).isEmpty();
+	}
+
+	public boolean deleteReleasedImage(String sha256) {
+		final String SQL = "DELETE FROM images WHERE sha256 = ? AND ref_count = 0";
+		return jdbcTemplate.update(SQL, sha256) == 1;
 	}
 }
@@ -0,0 +1,83 @@
+package fi.softala.ttl.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.Option;
+import fi.softala.ttl.model.Waypoint;
+import fi.softala.ttl.model.Worksheet;
+
+/**
+ * Builds the Category / Worksheet / Waypoint / Option tree in a single pass
+ * over a flat joined result set. Rows must be ordered by category, worksheet,
+ * waypoint and option so that each parent is complete before the next one
+ * starts. Worksheet, waypoint and option columns may be NULL (outer joins) for
+ * categories without worksheets and so on.
+ */
+public class WorksheetTreeExtractor implements ResultSetExtractor<List<Category>> {
+
+	@Override
+	public List<Category> extractData(ResultSet rs) throws SQLException, DataAccessException {
+		Map<Integer, Category> categories = new LinkedHashMap<>();
+		Worksheet worksheet = null;
+		Waypoint waypoint = null;
+
+		while (rs.next()) {
+			int categoryID = rs.getInt("category_id");
+			Category category = categories.get(categoryID);
+			if (category == null) {
+				category = new Category();
+				category.setCategoryID(categoryID);
+				category.setCategoryName(rs.getString("category_name"));
+				categories.put(categoryID, category);
+			}
+
+			int worksheetID = rs.getInt("worksheet_id");
+			if (rs.wasNull()) {
+				continue;
+			}
+			if (worksheet == null || worksheet.getWorksheetID() != worksheetID) {
+				worksheet = new Worksheet();
+				worksheet.setWorksheetID(worksheetID);
+				worksheet.setWorksheetHeader(rs.getString("header"));
+				worksheet.setWorksheetPreface(rs.getString("preface"));
+				worksheet.setWorksheetPlanning(rs.getString("planning"));
+				worksheet.setWorksheetCompleted(rs.getInt("completed") > 0);
+				worksheet.setWorksheetWaypoints(new ArrayList<>());
+				category.getCategoryWorksheets().add(worksheet);
+				waypoint = null;
+			}
+
+			int waypointID = rs.getInt("waypoint_id");
+			if (rs.wasNull()) {
+				continue;
+			}
+			if (waypoint == null || waypoint.getWaypointID() != waypointID) {
+				waypoint = new Waypoint();
+				waypoint.setWaypointID(waypointID);
+				waypoint.setWaypointTask(rs.getString("task"));
+				waypoint.setWaypointPhotoEnabled(rs.getBoolean("photo_enabled"));
+				waypoint.setWaypointOptions(new ArrayList<>());
+				worksheet.getWorksheetWaypoints().add(waypoint);
+			}
+
+			int optionID = rs.getInt("option_id");
+			if (rs.wasNull()) {
+				continue;
+			}
+			Option option = new Option();
+			option.setOptionID(optionID);
+			option.setOptionText(rs.getString("option_text"));
+			waypoint.getWaypointOptions().add(option);
+		}
+		return new ArrayList<>(categories.values());
+	}
+}
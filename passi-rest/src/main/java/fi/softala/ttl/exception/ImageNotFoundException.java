@@ -0,0 +1,16 @@
+package fi.softala.ttl.exception;
+
+public class ImageNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private String file;
+	
+	public ImageNotFoundException(String file) {
+		this.file = file;
+	}
+	
+	public String getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,17 @@
+package fi.softala.ttl.exception;
+
+public class InvalidImageException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private String file;
+	
+	public InvalidImageException(String file, String reason) {
+		super(reason);
+		this.file = file;
+	}
+	
+	public String getFile() {
+		return file;
+	}
+}
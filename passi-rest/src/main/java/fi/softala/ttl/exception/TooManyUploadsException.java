@@ -0,0 +1,16 @@
+package fi.softala.ttl.exception;
+
+public class TooManyUploadsException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private String file;
+	
+	public TooManyUploadsException(String file) {
+		this.file = file;
+	}
+	
+	public String getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,32 @@
+package fi.softala.ttl.metrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+
+/**
+ * Counts queries of async handlers (Callable, WebAsyncTask) to their request
+ * while they run on an executor thread, see RequestMetricsFilter.
+ */
+public class AsyncQueryCountingInterceptor extends CallableProcessingInterceptorAdapter {
+
+	private final SqlMetrics sqlMetrics;
+
+	public AsyncQueryCountingInterceptor(SqlMetrics sqlMetrics) {
+		this.sqlMetrics = sqlMetrics;
+	}
+
+	@Override
+	public <T> void preProcess(NativeWebRequest request, Callable<T> task) {
+		sqlMetrics.setRequestQueries((AtomicInteger) request.getAttribute(RequestMetricsFilter.QUERIES_ATTRIBUTE,
+				RequestAttributes.SCOPE_REQUEST));
+	}
+
+	@Override
+	public <T> void postProcess(NativeWebRequest request, Callable<T> task, Object concurrentResult) {
+		sqlMetrics.setRequestQueries(null);
+	}
+}
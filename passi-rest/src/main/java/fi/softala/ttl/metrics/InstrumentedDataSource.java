@@ -0,0 +1,143 @@
+package fi.softala.ttl.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * DataSource wrapper recording every statement execution into SqlMetrics:
+ * execution time, update counts and errors. Connections and statements are
+ * JDK proxies around the pooled objects, so JdbcTemplate, transactions and
+ * hand-written JDBC in the DAO are all covered. Only prepare* and execute*
+ * do more than delegate.
+ * 
+ * Result sets are returned as such. Counting rows read through a proxy made
+ * every next() and getter a reflective call, which made
+ * DaoBenchmark.getWorksheets almost twice as slow on an in-memory database.
+ * Rows read are counted by RowCountingJdbcTemplate instead.
+ */
+public class InstrumentedDataSource extends DelegatingDataSource {
+
+	private final SqlMetrics sqlMetrics;
+
+	public InstrumentedDataSource(DataSource targetDataSource, SqlMetrics sqlMetrics) {
+		super(targetDataSource);
+		this.sqlMetrics = sqlMetrics;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return proxy(Connection.class, new ConnectionHandler(getTargetDataSource().getConnection()));
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return proxy(Connection.class, new ConnectionHandler(getTargetDataSource().getConnection(username, password)));
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	private class ConnectionHandler implements InvocationHandler {
+
+		private final Connection target;
+
+		ConnectionHandler(Connection target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			// Connection holders of transactions compare the proxy to itself
+			if (method.getName().equals("equals")) {
+				return proxy == args[0];
+			} else if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			Object result = InstrumentedDataSource.invoke(target, method, args);
+			switch (method.getName()) {
+			case "prepareStatement":
+				return proxy(PreparedStatement.class,
+						new StatementHandler((Statement) result, sqlMetrics.statement((String) args[0])));
+			case "prepareCall":
+				return proxy(CallableStatement.class,
+						new StatementHandler((Statement) result, sqlMetrics.statement((String) args[0])));
+			case "createStatement":
+				return proxy(Statement.class, new StatementHandler((Statement) result, null));
+			default:
+				return result;
+			}
+		}
+	}
+
+	private class StatementHandler implements InvocationHandler {
+
+		private final Statement target;
+		private SqlMetrics.Statement statement;
+
+		// Prepared statement: SQL given at creation, plain statement: per execution
+		StatementHandler(Statement target, SqlMetrics.Statement statement) {
+			this.target = target;
+			this.statement = statement;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (!method.getName().startsWith("execute")) {
+				return InstrumentedDataSource.invoke(target, method, args);
+			}
+			if (args != null && args.length > 0 && args[0] instanceof String) {
+				statement = sqlMetrics.statement((String) args[0]);
+			}
+			long start = System.nanoTime();
+			boolean error = true;
+			long rows = 0;
+			try {
+				Object result = InstrumentedDataSource.invoke(target, method, args);
+				error = false;
+				rows = updateCount(result);
+				return result;
+			} finally {
+				if (statement != null) {
+					sqlMetrics.executed(statement, System.nanoTime() - start, rows, error);
+				}
+			}
+		}
+
+		private long updateCount(Object result) {
+			long rows = 0;
+			if (result instanceof Integer || result instanceof Long) {
+				rows = ((Number) result).longValue();
+			} else if (result instanceof int[]) {
+				for (int count : (int[]) result) {
+					rows += Math.max(count, 0);
+				}
+			} else if (result instanceof long[]) {
+				for (long count : (long[]) result) {
+					rows += Math.max(count, 0);
+				}
+			}
+			return rows;
+		}
+	}
+}
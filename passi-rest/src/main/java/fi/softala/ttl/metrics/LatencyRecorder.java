@@ -0,0 +1,71 @@
+package fi.softala.ttl.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency distribution of one measured operation. Recording is wait-free
+ * (HdrHistogram Recorder plus LongAdders), so it can be called on every
+ * request. Count and sum are cumulative; percentiles cover a sliding window
+ * of recent intervals, where an interval ends at every window() call.
+ */
+public class LatencyRecorder {
+
+	// Microseconds up to one minute, two significant digits keep histograms small
+	private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+	private static final int PRECISION = 2;
+
+	private final long windowMillis;
+	private final Recorder recorder = new Recorder(HIGHEST_MICROS, PRECISION);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumMicros = new LongAdder();
+	private final Deque<Histogram> intervals = new ArrayDeque<>();
+
+	/**
+	 * @param windowMillis how far back percentiles reach
+	 */
+	public LatencyRecorder(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		recorder.recordValue(Math.min(micros, HIGHEST_MICROS));
+		count.increment();
+		sumMicros.add(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumMicros.sum() / 1e6;
+	}
+
+	/**
+	 * Recorded values of the window, or since the previous call if that was
+	 * longer ago than the window.
+	 *
+	 * @return Histogram of microseconds, owned by the caller
+	 */
+	public synchronized Histogram window() {
+		long now = System.currentTimeMillis();
+		Histogram interval = recorder.getIntervalHistogram();
+		interval.setEndTimeStamp(now);
+		intervals.addLast(interval);
+		while (intervals.size() > 1 && intervals.peekFirst().getEndTimeStamp() < now - windowMillis) {
+			intervals.removeFirst();
+		}
+		Histogram window = new Histogram(HIGHEST_MICROS, PRECISION);
+		for (Histogram histogram : intervals) {
+			window.add(histogram);
+		}
+		return window;
+	}
+}
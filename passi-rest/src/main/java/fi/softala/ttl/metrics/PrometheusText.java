@@ -0,0 +1,88 @@
+package fi.softala.ttl.metrics;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Builder for the Prometheus text exposition format, version 0.0.4.
+ * Labels are given as alternating names and values.
+ */
+public class PrometheusText {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final StringBuilder text = new StringBuilder(4096);
+
+	/**
+	 * Start a metric family. Samples of the family must follow.
+	 *
+	 * @param type counter, gauge or summary
+	 */
+	public PrometheusText family(String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		return this;
+	}
+
+	public PrometheusText sample(String name, double value, String... labels) {
+		text.append(name);
+		if (labels.length > 0) {
+			text.append('{');
+			for (int i = 0; i < labels.length; i += 2) {
+				if (i > 0) {
+					text.append(',');
+				}
+				text.append(labels[i]).append("=\"");
+				escape(labels[i + 1]);
+				text.append('"');
+			}
+			text.append('}');
+		}
+		text.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			text.append((long) value);
+		} else {
+			text.append(value);
+		}
+		text.append('\n');
+		return this;
+	}
+
+	/**
+	 * Summary samples in seconds: windowed quantiles, cumulative sum and count.
+	 */
+	public PrometheusText summary(String name, LatencyRecorder latency, String... labels) {
+		Histogram window = latency.window();
+		String[] quantileLabels = new String[labels.length + 2];
+		System.arraycopy(labels, 0, quantileLabels, 0, labels.length);
+		quantileLabels[labels.length] = "quantile";
+		for (double quantile : QUANTILES) {
+			quantileLabels[labels.length + 1] = String.valueOf(quantile);
+			double seconds = window.getTotalCount() == 0 ? Double.NaN
+					: window.getValueAtPercentile(quantile * 100) / 1e6;
+			sample(name, seconds, quantileLabels);
+		}
+		sample(name + "_sum", latency.getSumSeconds(), labels);
+		sample(name + "_count", latency.getCount(), labels);
+		return this;
+	}
+
+	private void escape(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				text.append('\\').append(c);
+			} else if (c == '\n') {
+				text.append("\\n");
+			} else {
+				text.append(c);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return text.toString();
+	}
+}
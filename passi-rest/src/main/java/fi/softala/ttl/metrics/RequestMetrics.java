@@ -0,0 +1,113 @@
+package fi.softala.ttl.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counts, error counts and latencies by endpoint, recorded by
+ * RequestMetricsFilter. Endpoints are identified by HTTP method and the
+ * request mapping pattern, e.g. GET /user/{username:.+}, so the number of
+ * series stays bounded.
+ */
+public class RequestMetrics {
+
+	// Requests not mapped to a handler, e.g. 404s
+	public static final String UNMATCHED = "unmatched";
+
+	private final long windowMillis;
+	private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	/**
+	 * @param windowMillis how far back latency percentiles reach
+	 */
+	public RequestMetrics(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @param method HTTP method
+	 * @param pattern request mapping pattern or UNMATCHED
+	 * @param status response status
+	 * @param error true if the request failed with an exception
+	 * @param nanos time spent
+	 * @param queries SQL queries run
+	 * @param overQueryLimit true if queries exceeded the configured limit
+	 */
+	public void record(String method, String pattern, int status, boolean error, long nanos, int queries,
+			boolean overQueryLimit) {
+		Endpoint endpoint = endpoints.get(method + ' ' + pattern);
+		if (endpoint == null) {
+			endpoint = endpoints.computeIfAbsent(method + ' ' + pattern, key -> new Endpoint(method, pattern));
+		}
+		endpoint.latency.record(nanos);
+		int statusClass = status / 100;
+		if (statusClass >= 1 && statusClass <= 5) {
+			endpoint.statusClasses[statusClass - 1].increment();
+		}
+		if (error || status >= 500) {
+			endpoint.errors.increment();
+		}
+		endpoint.queries.add(queries);
+		if (overQueryLimit) {
+			endpoint.overQueryLimit.increment();
+		}
+	}
+
+	public void writeTo(PrometheusText text) {
+		Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+		text.family("passi_http_requests_total", "counter", "Requests by endpoint and status class.");
+		for (Endpoint endpoint : sorted.values()) {
+			for (int i = 0; i < endpoint.statusClasses.length; i++) {
+				long count = endpoint.statusClasses[i].sum();
+				if (count > 0) {
+					text.sample("passi_http_requests_total", count, "method", endpoint.method, "endpoint",
+							endpoint.pattern, "status", (i + 1) + "xx");
+				}
+			}
+		}
+		text.family("passi_http_request_errors_total", "counter",
+				"Requests answered with 5xx or failed with an exception.");
+		for (Endpoint endpoint : sorted.values()) {
+			text.sample("passi_http_request_errors_total", endpoint.errors.sum(), "method", endpoint.method,
+					"endpoint", endpoint.pattern);
+		}
+		text.family("passi_http_request_queries_total", "counter", "SQL queries run by requests.");
+		for (Endpoint endpoint : sorted.values()) {
+			text.sample("passi_http_request_queries_total", endpoint.queries.sum(), "method", endpoint.method,
+					"endpoint", endpoint.pattern);
+		}
+		text.family("passi_http_requests_over_query_limit_total", "counter",
+				"Requests that ran more SQL queries than sql.maxQueriesPerRequest.");
+		for (Endpoint endpoint : sorted.values()) {
+			text.sample("passi_http_requests_over_query_limit_total", endpoint.overQueryLimit.sum(), "method",
+					endpoint.method, "endpoint", endpoint.pattern);
+		}
+		text.family("passi_http_request_duration_seconds", "summary",
+				"Request latency, quantiles over the last " + windowMillis / 1000 + " s.");
+		for (Endpoint endpoint : sorted.values()) {
+			text.summary("passi_http_request_duration_seconds", endpoint.latency, "method", endpoint.method,
+					"endpoint", endpoint.pattern);
+		}
+	}
+
+	private class Endpoint {
+
+		final String method;
+		final String pattern;
+		final LatencyRecorder latency = new LatencyRecorder(windowMillis);
+		final LongAdder[] statusClasses = new LongAdder[5];
+		final LongAdder errors = new LongAdder();
+		final LongAdder queries = new LongAdder();
+		final LongAdder overQueryLimit = new LongAdder();
+
+		Endpoint(String method, String pattern) {
+			this.method = method;
+			this.pattern = pattern;
+			for (int i = 0; i < statusClasses.length; i++) {
+				statusClasses[i] = new LongAdder();
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package fi.softala.ttl.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+import org.springframework.web.servlet.HandlerMapping;
+
+/**
+ * Records every request to the dispatcher servlet into RequestMetrics,
+ * including the number of SQL queries it ran, see SqlMetrics. The
+ * filter is mapped to the servlet, so Spring Security's URL-mapped filter
+ * chain runs before it: requests rejected there are not counted, and
+ * authentication time is not part of the latency.
+ *
+ * Async requests are recorded once when they complete, their query counter is
+ * kept in the QUERIES_ATTRIBUTE request attribute for the threads handling
+ * them, see AsyncQueryCountingInterceptor.
+ */
+public class RequestMetricsFilter implements Filter {
+
+	public static final String QUERIES_ATTRIBUTE = RequestMetricsFilter.class.getName() + ".queries";
+
+	private RequestMetrics requestMetrics;
+	private SqlMetrics sqlMetrics;
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+		WebApplicationContext context = WebApplicationContextUtils
+				.getRequiredWebApplicationContext(filterConfig.getServletContext());
+		requestMetrics = context.getBean(RequestMetrics.class);
+		sqlMetrics = context.getBean(SqlMetrics.class);
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+		if (request.getDispatcherType() == DispatcherType.ASYNC) {
+			// Result of an async request, recorded by the listener of its first dispatch
+			chain.doFilter(req, res);
+			return;
+		}
+		long start = System.nanoTime();
+		boolean error = true;
+		AtomicInteger queries = sqlMetrics.startRequest();
+		request.setAttribute(QUERIES_ATTRIBUTE, queries);
+		try {
+			chain.doFilter(req, res);
+			error = false;
+		} finally {
+			if (!error && request.isAsyncStarted()) {
+				sqlMetrics.setRequestQueries(null);
+				request.getAsyncContext().addListener(new AsyncListener() {
+
+					private volatile boolean failed;
+
+					@Override
+					public void onComplete(AsyncEvent event) {
+						record(request, response, failed, start, queries);
+					}
+
+					@Override
+					public void onError(AsyncEvent event) {
+						failed = true;
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event) {}
+
+					@Override
+					public void onStartAsync(AsyncEvent event) {}
+				});
+			} else {
+				record(request, response, error, start, queries);
+			}
+		}
+	}
+
+	private void record(HttpServletRequest request, HttpServletResponse response, boolean error, long start,
+			AtomicInteger queries) {
+		int count = sqlMetrics.endRequest(request.getMethod() + " " + request.getRequestURI(), queries);
+		Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		requestMetrics.record(request.getMethod(), pattern != null ? pattern.toString() : RequestMetrics.UNMATCHED,
+				error ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus(), error,
+				System.nanoTime() - start, count, sqlMetrics.isOverLimit(count));
+	}
+
+	@Override
+	public void destroy() {}
+}
@@ -0,0 +1,202 @@
+package fi.softala.ttl.metrics;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlProvider;
+
+/**
+ * JdbcTemplate counting rows read into SqlMetrics, next to the updated rows
+ * InstrumentedDataSource records. Rows are counted by wrapping the RowMapper
+ * or RowCallbackHandler of a query, one increment per row, instead of
+ * proxying the result set.
+ *
+ * Only the overloads turning a RowMapper or RowCallbackHandler into a
+ * ResultSetExtractor are overridden, the others delegate to them, so each
+ * query is counted once. queryForObject, queryForList and queryForMap go
+ * through a RowMapper and are counted. Queries with a ResultSetExtractor of
+ * their own (e.g. WorksheetTreeExtractor) are not.
+ */
+public class RowCountingJdbcTemplate extends JdbcTemplate {
+
+	private final SqlMetrics sqlMetrics;
+
+	public RowCountingJdbcTemplate(DataSource dataSource, SqlMetrics sqlMetrics) {
+		super(dataSource);
+		this.sqlMetrics = sqlMetrics;
+	}
+
+	@Override
+	public void query(String sql, RowCallbackHandler rch) throws DataAccessException {
+		CountingRowCallbackHandler counting = new CountingRowCallbackHandler(rch);
+		try {
+			super.query(sql, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public void query(PreparedStatementCreator psc, RowCallbackHandler rch) throws DataAccessException {
+		CountingRowCallbackHandler counting = new CountingRowCallbackHandler(rch);
+		try {
+			super.query(psc, counting);
+		} finally {
+			read(sqlOf(psc), counting.rows);
+		}
+	}
+
+	@Override
+	public void query(String sql, PreparedStatementSetter pss, RowCallbackHandler rch) throws DataAccessException {
+		CountingRowCallbackHandler counting = new CountingRowCallbackHandler(rch);
+		try {
+			super.query(sql, pss, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(String sql, RowMapper<T> rowMapper) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(sql, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(PreparedStatementCreator psc, RowMapper<T> rowMapper) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(psc, counting);
+		} finally {
+			read(sqlOf(psc), counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(String sql, PreparedStatementSetter pss, RowMapper<T> rowMapper) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(sql, pss, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(String sql, Object[] args, int[] argTypes, RowMapper<T> rowMapper)
+			throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(sql, args, argTypes, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(String sql, Object[] args, RowMapper<T> rowMapper) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(sql, args, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.query(sql, counting, args);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> T queryForObject(String sql, Object[] args, int[] argTypes, RowMapper<T> rowMapper)
+			throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.queryForObject(sql, args, argTypes, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> T queryForObject(String sql, Object[] args, RowMapper<T> rowMapper) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.queryForObject(sql, args, counting);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	@Override
+	public <T> T queryForObject(String sql, RowMapper<T> rowMapper, Object... args) throws DataAccessException {
+		CountingRowMapper<T> counting = new CountingRowMapper<>(rowMapper);
+		try {
+			return super.queryForObject(sql, counting, args);
+		} finally {
+			read(sql, counting.rows);
+		}
+	}
+
+	private void read(String sql, long rows) {
+		if (sql != null && rows > 0) {
+			sqlMetrics.read(sql, rows);
+		}
+	}
+
+	// SQL of creators made by JdbcTemplate and NamedParameterJdbcTemplate, null for others
+	private static String sqlOf(PreparedStatementCreator psc) {
+		return psc instanceof SqlProvider ? ((SqlProvider) psc).getSql() : null;
+	}
+
+	private static class CountingRowMapper<T> implements RowMapper<T> {
+
+		private final RowMapper<T> target;
+		long rows;
+
+		CountingRowMapper(RowMapper<T> target) {
+			this.target = target;
+		}
+
+		@Override
+		public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+			rows++;
+			return target.mapRow(rs, rowNum);
+		}
+	}
+
+	private static class CountingRowCallbackHandler implements RowCallbackHandler {
+
+		private final RowCallbackHandler target;
+		long rows;
+
+		CountingRowCallbackHandler(RowCallbackHandler target) {
+			this.target = target;
+		}
+
+		@Override
+		public void processRow(ResultSet rs) throws SQLException {
+			rows++;
+			target.processRow(rs);
+		}
+	}
+}
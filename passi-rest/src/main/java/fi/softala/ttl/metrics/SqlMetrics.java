@@ -0,0 +1,207 @@
+package fi.softala.ttl.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timing, row and call counts by SQL statement, recorded by
+ * InstrumentedDataSource and, for rows read, RowCountingJdbcTemplate. Statements differing only in the length of IN
+ * lists or the number of multi-row VALUES tuples are counted together.
+ *
+ * Queries are also counted per HTTP request between startRequest() and
+ * endRequest() on the request thread, and on threads running queries for it,
+ * see setRequestQueries(). Slow statements and requests with too many queries
+ * are written to the SlowQueries log.
+ */
+public class SqlMetrics {
+
+	private static final Logger slowLog = LoggerFactory.getLogger("fi.softala.ttl.metrics.SlowQueries");
+
+	// Statements beyond the limit are counted under this name
+	public static final String OTHER = "other";
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final Pattern PARAMETER_LIST = Pattern.compile("(?i)\\bIN ?\\(\\?(?:\\s*,\\s*\\?)*\\)");
+	// Parenthesized tuple, may contain function calls like COALESCE(?, 0)
+	private static final String TUPLE = "\\((?:[^()]|\\([^()]*\\))*\\)";
+	private static final Pattern TUPLES = Pattern.compile("(" + TUPLE + ")(?:\\s*,\\s*" + TUPLE + ")+");
+
+	private final long windowMillis;
+	private final long slowNanos;
+	private final int maxQueriesPerRequest;
+	private final int maxStatements;
+	private final ConcurrentHashMap<String, Statement> statements = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Statement> bySql = new ConcurrentHashMap<>();
+	private final ThreadLocal<AtomicInteger> requestQueries = new ThreadLocal<>();
+
+	/**
+	 * @param windowMillis how far back latency percentiles reach
+	 * @param slowMillis statements taking longer are logged
+	 * @param maxQueriesPerRequest requests running more queries are logged
+	 * @param maxStatements distinct statements tracked
+	 */
+	public SqlMetrics(long windowMillis, long slowMillis, int maxQueriesPerRequest, int maxStatements) {
+		this.windowMillis = windowMillis;
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.maxQueriesPerRequest = maxQueriesPerRequest;
+		this.maxStatements = maxStatements;
+	}
+
+	/**
+	 * Look up the entry of a statement; done once per prepared statement.
+	 */
+	public Statement statement(String sql) {
+		Statement statement = bySql.get(sql);
+		if (statement != null) {
+			return statement;
+		}
+		String normalized = normalize(sql);
+		statement = statements.get(normalized);
+		if (statement == null) {
+			statement = statements.size() < maxStatements
+					? statements.computeIfAbsent(normalized, Statement::new)
+					: statements.computeIfAbsent(OTHER, Statement::new);
+		}
+		// Raw SQL variants are bounded too, the rest are normalized every time
+		if (bySql.size() < maxStatements * 4) {
+			bySql.put(sql, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * @param statement from statement()
+	 * @param nanos execution time
+	 * @param rows updated rows
+	 * @param error true if execution failed
+	 */
+	public void executed(Statement statement, long nanos, long rows, boolean error) {
+		statement.latency.record(nanos);
+		if (rows > 0) {
+			statement.rows.add(rows);
+		}
+		if (error) {
+			statement.errors.increment();
+		}
+		AtomicInteger queries = requestQueries.get();
+		if (queries != null) {
+			queries.incrementAndGet();
+		}
+		if (nanos > slowNanos) {
+			slowLog.warn("Slow query {} ms: {}", TimeUnit.NANOSECONDS.toMillis(nanos), statement.sql);
+		}
+	}
+
+	/**
+	 * @param sql statement as executed
+	 * @param rows rows read from its result set
+	 */
+	public void read(String sql, long rows) {
+		statement(sql).rows.add(rows);
+	}
+
+	/**
+	 * Start counting queries of the current thread.
+	 *
+	 * @return query counter of the request, for endRequest()
+	 */
+	public AtomicInteger startRequest() {
+		AtomicInteger queries = new AtomicInteger();
+		requestQueries.set(queries);
+		return queries;
+	}
+
+	/**
+	 * @return query counter of the current thread's request, null if none
+	 */
+	public AtomicInteger getRequestQueries() {
+		return requestQueries.get();
+	}
+
+	/**
+	 * Count queries of the current thread to a request started on another
+	 * thread.
+	 *
+	 * @param queries from getRequestQueries() of the request thread, or null
+	 * @return previous counter of the current thread, to be restored after
+	 */
+	public AtomicInteger setRequestQueries(AtomicInteger queries) {
+		AtomicInteger previous = requestQueries.get();
+		if (queries != null) {
+			requestQueries.set(queries);
+		} else {
+			requestQueries.remove();
+		}
+		return previous;
+	}
+
+	/**
+	 * Stop counting queries of the current thread, logging the request if it
+	 * ran more than maxQueriesPerRequest. An async request ends on another
+	 * thread than it started, its first thread detaches the counter with
+	 * setRequestQueries(null).
+	 *
+	 * @param request description for the log, e.g. method and URI
+	 * @param queries from startRequest()
+	 * @return queries run since startRequest()
+	 */
+	public int endRequest(String request, AtomicInteger queries) {
+		requestQueries.remove();
+		int count = queries.get();
+		if (isOverLimit(count)) {
+			slowLog.warn("Request {} ran {} queries", request, count);
+		}
+		return count;
+	}
+
+	public boolean isOverLimit(int queries) {
+		return queries > maxQueriesPerRequest;
+	}
+
+	public void writeTo(PrometheusText text) {
+		Map<String, Statement> sorted = new TreeMap<>(statements);
+		text.family("passi_sql_duration_seconds", "summary",
+				"Statement execution time, quantiles over the last " + windowMillis / 1000 + " s.");
+		for (Statement statement : sorted.values()) {
+			text.summary("passi_sql_duration_seconds", statement.latency, "statement", statement.sql);
+		}
+		text.family("passi_sql_rows_total", "counter", "Rows read or updated by statement, rows read by ResultSetExtractors not included.");
+		for (Statement statement : sorted.values()) {
+			text.sample("passi_sql_rows_total", statement.rows.sum(), "statement", statement.sql);
+		}
+		text.family("passi_sql_errors_total", "counter", "Failed executions by statement.");
+		for (Statement statement : sorted.values()) {
+			text.sample("passi_sql_errors_total", statement.errors.sum(), "statement", statement.sql);
+		}
+	}
+
+	// IN (?, ?, ?) -> IN (?, ...) and VALUES (...), (...) -> VALUES (...), ...
+	static String normalize(String sql) {
+		String normalized = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+		normalized = PARAMETER_LIST.matcher(normalized).replaceAll("IN (?, ...)");
+		return TUPLES.matcher(normalized).replaceAll("$1, ...");
+	}
+
+	/**
+	 * Counters of one normalized statement.
+	 */
+	public class Statement {
+
+		final String sql;
+		final LatencyRecorder latency = new LatencyRecorder(windowMillis);
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Statement(String sql) {
+			this.sql = sql;
+		}
+	}
+}
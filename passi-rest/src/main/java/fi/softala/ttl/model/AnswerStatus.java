@@ -0,0 +1,10 @@
+package fi.softala.ttl.model;
+
+/**
+ * Outcome of saving one answersheet of a batch.
+ */
+public enum AnswerStatus {
+
+	CREATED, INVALID_USER, ALREADY_ANSWERED, FAILED
+
+}
@@ -0,0 +1,64 @@
+package fi.softala.ttl.model;
+
+import java.io.Serializable;
+
+/**
+ * Per item result of batch answer submission, in the order of the request.
+ */
+public class AnswersheetResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int worksheetID;
+	private int userID;
+	private int answersheetID;
+	private AnswerStatus status;
+
+	public AnswersheetResult() {
+		super();
+		this.worksheetID = 0;
+		this.userID = 0;
+		this.answersheetID = 0;
+		this.status = null;
+	}
+
+	public AnswersheetResult(int worksheetID, int userID, int answersheetID, AnswerStatus status) {
+		super();
+		this.worksheetID = worksheetID;
+		this.userID = userID;
+		this.answersheetID = answersheetID;
+		this.status = status;
+	}
+
+	public int getWorksheetID() {
+		return worksheetID;
+	}
+
+	public void setWorksheetID(int worksheetID) {
+		this.worksheetID = worksheetID;
+	}
+
+	public int getUserID() {
+		return userID;
+	}
+
+	public void setUserID(int userID) {
+		this.userID = userID;
+	}
+
+	public int getAnswersheetID() {
+		return answersheetID;
+	}
+
+	public void setAnswersheetID(int answersheetID) {
+		this.answersheetID = answersheetID;
+	}
+
+	public AnswerStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(AnswerStatus status) {
+		this.status = status;
+	}
+}
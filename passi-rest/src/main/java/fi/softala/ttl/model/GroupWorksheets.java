@@ -0,0 +1,62 @@
+package fi.softala.ttl.model;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Worksheets of one group with the user's completion and feedback state, part
+ * of Home.
+ */
+public class GroupWorksheets implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String groupID;
+	private List<Category> categories;
+	private Map<Integer, Integer> feedbackComplete;
+
+	public GroupWorksheets() {
+		super();
+		this.groupID = "";
+		this.categories = null;
+		this.feedbackComplete = null;
+	}
+
+	public GroupWorksheets(String groupID, List<Category> categories, Map<Integer, Integer> feedbackComplete) {
+		super();
+		this.groupID = groupID;
+		this.categories = categories;
+		this.feedbackComplete = feedbackComplete;
+	}
+
+	public String getGroupID() {
+		return groupID;
+	}
+
+	public void setGroupID(String groupID) {
+		this.groupID = groupID;
+	}
+
+	public List<Category> getCategories() {
+		return categories;
+	}
+
+	public void setCategories(List<Category> categories) {
+		this.categories = categories;
+	}
+
+	public Map<Integer, Integer> getFeedbackComplete() {
+		return feedbackComplete;
+	}
+
+	public void setFeedbackComplete(Map<Integer, Integer> feedbackComplete) {
+		this.feedbackComplete = feedbackComplete;
+	}
+
+	@Override
+	public String toString() {
+		return "GroupWorksheets [groupID=" + groupID + ", categories=" + categories + ", feedbackComplete="
+				+ feedbackComplete + "]";
+	}
+}
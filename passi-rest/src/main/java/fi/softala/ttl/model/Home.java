@@ -0,0 +1,78 @@
+package fi.softala.ttl.model;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Everything the mobile client shows after login in one response: the user
+ * with groups and instructors, overall progress and the worksheets of each
+ * group with completion and feedback state. The version stamp is not sent,
+ * it identifies the content for the entity tag, see PassiService.
+ */
+public class Home implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private User user;
+	private Map<String, Long> progress;
+	private List<GroupWorksheets> groups;
+	private String version;
+
+	public Home() {
+		super();
+		this.user = null;
+		this.progress = null;
+		this.groups = null;
+		this.version = null;
+	}
+
+	public Home(User user, Map<String, Long> progress, List<GroupWorksheets> groups, String version) {
+		super();
+		this.user = user;
+		this.progress = progress;
+		this.groups = groups;
+		this.version = version;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	public void setUser(User user) {
+		this.user = user;
+	}
+
+	public Map<String, Long> getProgress() {
+		return progress;
+	}
+
+	public void setProgress(Map<String, Long> progress) {
+		this.progress = progress;
+	}
+
+	public List<GroupWorksheets> getGroups() {
+		return groups;
+	}
+
+	public void setGroups(List<GroupWorksheets> groups) {
+		this.groups = groups;
+	}
+
+	@JsonIgnore
+	public String getVersion() {
+		return version;
+	}
+
+	@JsonIgnore
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	@Override
+	public String toString() {
+		return "Home [user=" + user + ", progress=" + progress + ", groups=" + groups + "]";
+	}
+}
@@ -6,6 +6,8 @@ package fi.softala.ttl.model;
 import java.io.Serializable;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class User implements Serializable {
 
 	private static final long serialVersionUID = 1L;
@@ -16,6 +18,8 @@ public class User implements Serializable {
 	private String lastname;
 	private String email;
 	private List<Group> groups;
+	// Version stamp for the entity tag, not sent, see PassiService.findUser()
+	private String version;
 
 	public User() {
 		super();
@@ -80,6 +84,16 @@ public class User implements Serializable {
 		this.groups = groups;
 	}
 
+	@JsonIgnore
+	public String getVersion() {
+		return version;
+	}
+
+	@JsonIgnore
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
 	@Override
 	public String toString() {
 		return "User [userID=" + userID + ", username=" + username + ", firstname=" + firstname + ", lastname="
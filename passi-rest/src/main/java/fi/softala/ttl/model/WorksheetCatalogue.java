@@ -0,0 +1,45 @@
+package fi.softala.ttl.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Read-only worksheet content of one group with a version stamp of the
+ * content. Held in the catalogue cache, never sent to clients as such. Also
+ * the worksheets of one user with completion flags, see PassiService.
+ */
+public class WorksheetCatalogue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Category> categories;
+	private final String version;
+
+	public WorksheetCatalogue(List<Category> categories, String version) {
+		super();
+		this.categories = categories;
+		this.version = version;
+	}
+
+	public List<Category> getCategories() {
+		return categories;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	// Worksheets distributed to the group, the total of progress
+	public int countWorksheets() {
+		int count = 0;
+		for (Category category : categories) {
+			count += category.getCategoryWorksheets().size();
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "WorksheetCatalogue [version=" + version + ", categories=" + categories.size() + "]";
+	}
+}
@@ -0,0 +1,40 @@
+package fi.softala.ttl.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Shared secret for the administrative endpoints (/metrics/, /update-worksheets/),
+ * sent by the scraper or the instructor application in the X-Admin-Secret header.
+ * Required in addition to the local address check, so a process on the same
+ * host or a misconfigured proxy forwarding from localhost is not enough.
+ * Without a configured secret every request is rejected.
+ */
+public class AdminSecret {
+
+	public static final String HEADER = "X-Admin-Secret";
+
+	private final byte[] secret;
+
+	public AdminSecret(String secret) {
+		this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public boolean isConfigured() {
+		return secret != null;
+	}
+
+	/**
+	 * Called from the access expression in SecurityConfiguration.
+	 * 
+	 * @param request
+	 * @return boolean true if the request carries the configured secret
+	 */
+	public boolean matches(HttpServletRequest request) {
+		String header = request.getHeader(HEADER);
+		return secret != null && header != null
+				&& MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,105 @@
+package fi.softala.ttl.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collection;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+
+import fi.softala.ttl.cache.ExpiringCache;
+
+/**
+ * Authentication provider that remembers successful username / password
+ * verifications for a short time. The first request of a session pays the
+ * full BCrypt cost in the delegate provider, repeated Basic auth requests with
+ * the same credentials are checked against an HMAC-SHA256 digest instead.
+ *
+ * Plain passwords are never stored. The HMAC key is random per JVM, so cached
+ * digests are useless outside this process.
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final AuthenticationProvider delegate;
+	private final ExpiringCache<String, Verified> verified;
+	private final SecretKeySpec key;
+
+	public CachingAuthenticationProvider(AuthenticationProvider delegate, int maxSize, long ttlMillis) {
+		this.delegate = delegate;
+		this.verified = new ExpiringCache<>(maxSize, ttlMillis);
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+	}
+
+	@Override
+	public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+		if (authentication.getCredentials() == null) {
+			return delegate.authenticate(authentication);
+		}
+		String username = authentication.getName();
+		byte[] digest = digest(username, authentication.getCredentials().toString());
+		Verified cached = verified.getIfPresent(username);
+		if (cached != null && MessageDigest.isEqual(cached.digest, digest)) {
+			UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(cached.principal,
+					null, cached.authorities);
+			result.setDetails(authentication.getDetails());
+			return result;
+		}
+		Authentication result = delegate.authenticate(authentication);
+		if (result != null && result.isAuthenticated()) {
+			verified.put(username, new Verified(digest, result.getPrincipal(), result.getAuthorities()));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean supports(Class<?> authentication) {
+		return UsernamePasswordAuthenticationToken.class.isAssignableFrom(authentication)
+				&& delegate.supports(authentication);
+	}
+
+	/**
+	 * Forget cached verification of a user, e.g. after password change.
+	 * 
+	 * @param username
+	 */
+	public void evict(String username) {
+		verified.invalidate(username);
+	}
+
+	private byte[] digest(String username, String password) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			mac.update(username.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+
+	private static class Verified {
+
+		private final byte[] digest;
+		private final Object principal;
+		private final Collection<? extends GrantedAuthority> authorities;
+
+		Verified(byte[] digest, Object principal, Collection<? extends GrantedAuthority> authorities) {
+			this.digest = digest;
+			this.principal = principal;
+			this.authorities = authorities;
+		}
+	}
+}
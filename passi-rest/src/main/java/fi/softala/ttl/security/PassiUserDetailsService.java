@@ -0,0 +1,53 @@
+package fi.softala.ttl.security;
+
+import java.util.Collections;
+
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import fi.softala.ttl.cache.ExpiringCache;
+import fi.softala.ttl.model.AuthUser;
+import fi.softala.ttl.service.PassiService;
+
+/**
+ * Loads authentication users from the database on demand and keeps recently
+ * used ones in a bounded LRU cache. Unknown usernames are not cached, so new
+ * registrations are found immediately. Changes made on other nodes show up
+ * after the TTL at the latest.
+ */
+public class PassiUserDetailsService implements UserDetailsService {
+
+	private final PassiService passiService;
+	private final ExpiringCache<String, AuthUser> users;
+
+	public PassiUserDetailsService(PassiService passiService, int maxSize, long ttlMillis) {
+		this.passiService = passiService;
+		this.users = new ExpiringCache<>(maxSize, ttlMillis);
+	}
+
+	@Override
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		AuthUser authUser = users.get(username, () -> {
+			AuthUser found = passiService.findAuthUser(username);
+			if (found == null) {
+				throw new UsernameNotFoundException("User [" + username + "] not found");
+			}
+			return found;
+		});
+		// New instance every time, authentication erases credentials of the returned object
+		return new User(authUser.getUsername(), authUser.getPassword(),
+				Collections.singleton(new SimpleGrantedAuthority("ROLE_USER")));
+	}
+
+	/**
+	 * Forget cached user, next authentication reloads it from the database.
+	 * 
+	 * @param username
+	 */
+	public void evict(String username) {
+		users.invalidate(username);
+	}
+}
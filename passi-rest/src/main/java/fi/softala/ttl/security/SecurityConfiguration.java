@@ -1,6 +1,8 @@
 package fi.softala.ttl.security;
 
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,7 +10,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpMethod;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
@@ -17,9 +21,9 @@ import org.springframework.security.config.annotation.web.configuration.WebSecur
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
-import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
-import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.service.PassiService;
 
 /**
@@ -38,19 +42,70 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
  	@Autowired
  	PassiService passiService;
 	
+    @Autowired
+    private Environment env;
+	
     @Autowired
     public void configureGlobalSecurity(AuthenticationManagerBuilder auth) throws Exception {
-    	auth.userDetailsService(inMemoryUserDetailsManager()).passwordEncoder(passwordEncoder());
+    	auth.authenticationProvider(cachingAuthenticationProvider());
+    }
+    
+    /**
+     * BCrypt verification through DaoAuthenticationProvider, repeated requests
+     * with the same credentials served from a short lived verification cache.
+     */
+    @Bean
+    public CachingAuthenticationProvider cachingAuthenticationProvider() {
+    	DaoAuthenticationProvider daoAuthenticationProvider = new DaoAuthenticationProvider();
+    	daoAuthenticationProvider.setUserDetailsService(passiUserDetailsService());
+    	daoAuthenticationProvider.setPasswordEncoder(passwordEncoder());
+    	return new CachingAuthenticationProvider(daoAuthenticationProvider,
+    			env.getProperty("auth.cache.maxSize", Integer.class, 10000),
+    			TimeUnit.SECONDS.toMillis(env.getProperty("auth.cache.ttlSeconds", Long.class, 300L)));
+    }
+    
+    /**
+     * Signed access tokens for /login/. Nodes behind the same load balancer
+     * must share auth.token.secret, otherwise each node only accepts its own
+     * tokens. Tokens are revoked by a password change, otherwise they live
+     * for auth.token.ttlSeconds.
+     */
+    @Bean
+    public TokenService tokenService() {
+    	String secret = env.getProperty("auth.token.secret");
+    	byte[] key;
+    	if (secret == null || secret.isEmpty()) {
+    		log.warn("tokenService() - auth.token.secret not set, using a random key valid until restart");
+    		key = new byte[32];
+    		new SecureRandom().nextBytes(key);
+    	} else {
+    		key = secret.getBytes(StandardCharsets.UTF_8);
+    	}
+    	return new TokenService(key, env.getProperty("auth.token.ttlSeconds", Long.class, 3600L));
+    }
+    
+    /**
+     * Authentication users looked up from the database when needed, recently
+     * used ones cached. Nothing is loaded at startup.
+     */
+    @Bean
+    public PassiUserDetailsService passiUserDetailsService() {
+    	return new PassiUserDetailsService(passiService,
+    			env.getProperty("auth.users.cacheSize", Integer.class, 1000),
+    			TimeUnit.SECONDS.toMillis(env.getProperty("auth.users.cacheTtlSeconds", Long.class, 900L)));
     }
     
+    /**
+     * Secret for /metrics/ and /update-worksheets/, checked together with the
+     * local address. The endpoints stay closed until admin.secret is set.
+     */
     @Bean
-    public InMemoryUserDetailsManager inMemoryUserDetailsManager() {
-        final Properties users = new Properties();
-    	for (AuthUser authUser : passiService.getAuthUsers()) {
-    		users.put(authUser.getUsername(), authUser.getPassword() + ",ROLE_USER,enabled");
+    public AdminSecret adminSecret() {
+    	AdminSecret adminSecret = new AdminSecret(env.getProperty("admin.secret"));
+    	if (!adminSecret.isConfigured()) {
+    		log.warn("adminSecret() - admin.secret not set, /metrics/ and /update-worksheets/ reject all requests");
     	}
-    	log.info("inMemoryUserDetailsManager() - Authentication users fetched from database");
-        return new InMemoryUserDetailsManager(users);
+    	return adminSecret;
     }
     
     @Bean
@@ -64,9 +119,11 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
       http.csrf().disable()
         .authorizeRequests()
         .antMatchers("/", "/register/**", "/update-rest-password/**").permitAll()
-        .antMatchers("/user/**", "/student/**", "/worksheet/**", "/answer/**", "/join/**", "/upload/**").hasRole("USER")
+        .antMatchers("/login/**", "/user/**", "/home/**", "/student/**", "/worksheet/**", "/answer/**", "/answers/**", "/join/**", "/upload/**", "/image/**").hasRole("USER")
+        .antMatchers("/metrics/**", "/update-worksheets/**").access("(hasIpAddress('127.0.0.1') or hasIpAddress('::1')) and @adminSecret.matches(request)")
         .and().httpBasic().realmName(REALM).authenticationEntryPoint(getBasicAuthEntryPoint())
-        .and().sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
+        .and().addFilterBefore(new TokenAuthenticationFilter(tokenService(), passiUserDetailsService(), new AntPathRequestMatcher("/login/**")), BasicAuthenticationFilter.class)
+        .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
     }
      
     @Bean
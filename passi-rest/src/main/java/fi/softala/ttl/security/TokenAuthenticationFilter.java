@@ -0,0 +1,81 @@
+package fi.softala.ttl.security;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Authenticates requests carrying "Authorization: Bearer <token>" issued by
+ * TokenService. Requests without a valid token continue unauthenticated, so
+ * Basic auth and the authentication entry point still apply.
+ *
+ * Tokens are not accepted on the excluded paths, i.e. /login/: a token must
+ * not be exchanged for a new one, or a leaked token would never expire.
+ *
+ * The password fingerprint in the token is compared with the current password
+ * from the user details service, so tokens stop working once the password is
+ * changed (on other nodes after their user cache TTL).
+ */
+public class TokenAuthenticationFilter extends OncePerRequestFilter {
+
+	private static final String PREFIX = "Bearer ";
+
+	private final TokenService tokenService;
+	private final UserDetailsService users;
+	private final RequestMatcher excluded;
+	private final WebAuthenticationDetailsSource detailsSource = new WebAuthenticationDetailsSource();
+
+	/**
+	 * @param tokenService
+	 * @param users source of current password hashes
+	 * @param excluded requests that need Basic auth
+	 */
+	public TokenAuthenticationFilter(TokenService tokenService, UserDetailsService users, RequestMatcher excluded) {
+		this.tokenService = tokenService;
+		this.users = users;
+		this.excluded = excluded;
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return excluded.matches(request);
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String header = request.getHeader("Authorization");
+		if (header != null && header.startsWith(PREFIX)
+				&& SecurityContextHolder.getContext().getAuthentication() == null) {
+			String username = tokenService.verify(header.substring(PREFIX.length()).trim(), this::passwordHash);
+			if (username != null) {
+				UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(username,
+						null, Collections.singleton(new SimpleGrantedAuthority("ROLE_USER")));
+				authentication.setDetails(detailsSource.buildDetails(request));
+				SecurityContextHolder.getContext().setAuthentication(authentication);
+			}
+		}
+		chain.doFilter(request, response);
+	}
+
+	private String passwordHash(String username) {
+		try {
+			return users.loadUserByUsername(username).getPassword();
+		} catch (UsernameNotFoundException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package fi.softala.ttl.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.Function;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and verifies compact HMAC-SHA256 signed access tokens:
+ * 
+ * base64url(username) "." expiry epoch seconds "." base64url(password fingerprint) "." base64url(signature)
+ * 
+ * The password fingerprint is a keyed hash of the stored password hash, so
+ * changing the password revokes every token issued before the change. The
+ * signature needs only the shared secret, the fingerprint is checked against
+ * the (cached) authentication user.
+ */
+public class TokenService {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int FINGERPRINT_BYTES = 16;
+
+	private final SecretKeySpec key;
+	private final long ttlSeconds;
+
+	public TokenService(byte[] secret, long ttlSeconds) {
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	public long getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	/**
+	 * Create a token for an authenticated user.
+	 * 
+	 * @param username
+	 * @param passwordHash stored password hash the user authenticated against
+	 * @return String token valid for ttlSeconds or until the password changes
+	 */
+	public String issue(String username, String passwordHash) {
+		long expires = System.currentTimeMillis() / 1000 + ttlSeconds;
+		String payload = encode(username.getBytes(StandardCharsets.UTF_8)) + "." + expires + "."
+				+ encode(fingerprint(passwordHash));
+		return payload + "." + encode(sign(payload));
+	}
+
+	/**
+	 * Check signature, expiry and password fingerprint of a token.
+	 * 
+	 * @param token
+	 * @param passwordHash current password hash of a username, null if the user is gone
+	 * @return String username or null if token is malformed, forged, expired or revoked
+	 */
+	public String verify(String token, Function<String, String> passwordHash) {
+		String[] parts = token.split("\\.", -1);
+		if (parts.length != 4) {
+			return null;
+		}
+		String payload = parts[0] + "." + parts[1] + "." + parts[2];
+		try {
+			if (!MessageDigest.isEqual(Base64.getUrlDecoder().decode(parts[3]), sign(payload))) {
+				return null;
+			}
+			if (Long.parseLong(parts[1]) < System.currentTimeMillis() / 1000) {
+				return null;
+			}
+			String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+			String current = passwordHash.apply(username);
+			if (current == null || !MessageDigest.isEqual(Base64.getUrlDecoder().decode(parts[2]), fingerprint(current))) {
+				return null;
+			}
+			return username;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private byte[] fingerprint(String passwordHash) {
+		return Arrays.copyOf(sign("password:" + passwordHash), FINGERPRINT_BYTES);
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private byte[] sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package fi.softala.ttl.service;
+
+import java.nio.file.Path;
+
+/**
+ * Stored image file located for download.
+ */
+public class ImageFile {
+
+	private final Path path;
+	private final ImageSize size;
+	private final String version;
+
+	public ImageFile(Path path, ImageSize size, String version) {
+		super();
+		this.path = path;
+		this.size = size;
+		this.version = version;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	// Size actually found, ORIGINAL when a variant is not available yet
+	public ImageSize getSize() {
+		return size;
+	}
+
+	// Content hash based version for a strong ETag, null for files outside the image store
+	public String getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,121 @@
+package fi.softala.ttl.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Produces downscaled JPEG variants of one image. The source is decoded once
+ * with subsampling, so a large photo never needs its full resolution bitmap
+ * in memory, and each variant is written to a temporary file and renamed.
+ */
+final class ImageScaler {
+
+	private static final float QUALITY = 0.85f;
+
+	private ImageScaler() {
+	}
+
+	/**
+	 * Write variants of source image.
+	 * 
+	 * @param source original JPEG
+	 * @param targets variant files by size
+	 */
+	static void createVariants(Path source, Map<ImageSize, Path> targets) throws IOException {
+		// Largest first, each smaller variant is scaled from the previous one
+		List<ImageSize> sizes = new ArrayList<>(targets.keySet());
+		sizes.sort(Comparator.comparingInt(ImageSize::getMaxDimension).reversed());
+		BufferedImage image = read(source, sizes.get(0).getMaxDimension());
+		for (ImageSize size : sizes) {
+			image = fit(image, size.getMaxDimension());
+			write(image, targets.get(size));
+		}
+	}
+
+	// Decode skipping pixels so that the result is still at least maxDimension wide or high
+	private static BufferedImage read(Path source, int maxDimension) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("No image reader for " + source);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+				int step = Math.max(1, longest / maxDimension);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	// Halve with bilinear filtering until close to target, then scale to exact size
+	private static BufferedImage fit(BufferedImage image, int maxDimension) {
+		int longest = Math.max(image.getWidth(), image.getHeight());
+		if (longest <= maxDimension) {
+			return image;
+		}
+		while (longest / 2 >= maxDimension) {
+			image = scale(image, image.getWidth() / 2, image.getHeight() / 2);
+			longest = Math.max(image.getWidth(), image.getHeight());
+		}
+		double ratio = (double) maxDimension / longest;
+		return scale(image, Math.max(1, (int) Math.round(image.getWidth() * ratio)),
+				Math.max(1, (int) Math.round(image.getHeight() * ratio)));
+	}
+
+	private static BufferedImage scale(BufferedImage image, int width, int height) {
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	private static void write(BufferedImage image, Path target) throws IOException {
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString() + "-", ".part");
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		try {
+			try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+				ImageWriteParam param = writer.getDefaultWriteParam();
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(QUALITY);
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(image, null, null), param);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			writer.dispose();
+			Files.deleteIfExists(temp);
+		}
+	}
+}
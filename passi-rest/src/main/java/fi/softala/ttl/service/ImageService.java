@@ -0,0 +1,12 @@
+package fi.softala.ttl.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface ImageService {
+	
+	public String saveImage(String file, InputStream content, String username) throws IOException;
+	
+	public ImageFile getImage(String file, ImageSize size, String username);
+	
+}
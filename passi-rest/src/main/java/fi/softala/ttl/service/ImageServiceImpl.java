@@ -0,0 +1,355 @@
+package fi.softala.ttl.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import fi.softala.ttl.exception.ImageNotFoundException;
+import fi.softala.ttl.exception.InvalidImageException;
+import fi.softala.ttl.exception.TooManyUploadsException;
+import fi.softala.ttl.storage.ImageStore;
+
+/**
+ * Stores uploaded JPEG images without holding them in memory. The request
+ * body is streamed through a small buffer into a temporary file while its
+ * SHA-256 is computed, the marker structure is checked without decoding,
+ * metadata segments (EXIF, GPS, XMP, comments) are dropped and the file is
+ * moved into the content-addressed ImageStore under the SHA-256 of the
+ * stored bytes.
+ * 
+ * Identical uploads share one stored file. The upload name chosen by the
+ * client (answerpoints image_url) is linked to the hash with a reference
+ * count before the file is moved into the store; files without references
+ * are deleted after images.releaseGraceMinutes, under a lock on the reference
+ * count row so that a concurrent upload of the same content cannot lose its
+ * file.
+ * A name belongs to the user who uploaded it, and images are only served to
+ * the owner of a name pointing to them.
+ * 
+ * The number of uploads processed at the same time is limited, extra uploads
+ * wait briefly and are then refused. The limit applies after the body has
+ * been received, so slow clients do not hold upload slots.
+ * 
+ * Downscaled variants (see ImageSize) are made afterwards on the image
+ * executor. When its queue is full the work is dropped and retried on the
+ * next read of a missing variant; until then readers get the original.
+ */
+@Service("imageService")
+public class ImageServiceImpl implements ImageService {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageServiceImpl.class);
+
+	private static final String FILE_PATTERN = "^[A-Za-z0-9][A-Za-z0-9_.-]{0,63}$";
+	private static final String HASH_PATTERN = "^[0-9a-f]{64}$";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ImageStore store;
+	private final PassiService passiService;
+	private final long maxBytes;
+	private final long uploadWaitMillis;
+	private final long releaseGraceMillis;
+	private final Semaphore uploads;
+	private final ExecutorService executor;
+	private final Set<String> pendingVariants = ConcurrentHashMap.newKeySet();
+
+	@Inject
+	public ImageServiceImpl(Environment env, ImageStore store, PassiService passiService,
+			@Named("imageExecutor") ExecutorService executor) {
+		this.store = store;
+		this.passiService = passiService;
+		this.maxBytes = env.getProperty("images.maxBytes", Long.class, 16L * 1024 * 1024);
+		this.uploadWaitMillis = env.getProperty("images.uploadWaitMs", Long.class, 2000L);
+		this.releaseGraceMillis = TimeUnit.MINUTES.toMillis(env.getProperty("images.releaseGraceMinutes", Long.class, 60L));
+		this.uploads = new Semaphore(env.getProperty("images.maxConcurrentUploads", Integer.class, 8), true);
+		this.executor = executor;
+	}
+
+	/**
+	 * Save JPEG image under upload name, replacing a previous one with the same
+	 * name.
+	 * 
+	 * @param file name without extension
+	 * @param content request body, read until end of stream
+	 * @param username uploading user, becomes owner of the name
+	 * @return String SHA-256 of stored content (without metadata), also usable
+	 * as name
+	 * @throws InvalidImageException if name or content is not acceptable, or
+	 * the name belongs to another user
+	 * @throws TooManyUploadsException if upload slots stay busy
+	 */
+	@Override
+	public String saveImage(String file, InputStream content, String username) throws IOException {
+		if (!file.matches(FILE_PATTERN) || file.contains("..") || file.matches(HASH_PATTERN)) {
+			throw new InvalidImageException(file, "invalid file name");
+		}
+		if (!passiService.isImageNameAvailable(file, username)) {
+			throw new InvalidImageException(file, "name is used by another user");
+		}
+		Path received = null;
+		Path stripped = null;
+		String sha256;
+		long size;
+		try {
+			received = store.createTempFile();
+			try (FileChannel channel = FileChannel.open(received, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				sha256 = copy(Channels.newChannel(content), channel, file);
+				acquireUploadSlot(file);
+				try {
+					List<long[]> metadata = JpegStructure.inspect(channel, file);
+					if (!metadata.isEmpty()) {
+						stripped = store.createTempFile();
+						sha256 = strip(channel, metadata, stripped);
+					}
+					Path stored = stripped != null ? stripped : received;
+					size = Files.size(stored);
+					link(file, sha256, size, username, stored);
+				} finally {
+					uploads.release();
+				}
+			}
+		} finally {
+			deleteQuietly(received);
+			deleteQuietly(stripped);
+		}
+		log.debug("saveImage() : Stored {}.jpg as {}", file, sha256);
+		scheduleVariants(sha256);
+		return sha256;
+	}
+
+	/**
+	 * Locate stored image in requested size. A variant not made yet is
+	 * scheduled and the original is returned instead.
+	 * 
+	 * @param file upload name or SHA-256 hash, without extension
+	 * @param size requested size
+	 * @param username requesting user
+	 * @return ImageFile of an existing JPEG file
+	 * @throws ImageNotFoundException if there is no such image or it is not
+	 * the user's
+	 */
+	@Override
+	public ImageFile getImage(String file, ImageSize size, String username) {
+		if (!file.matches(FILE_PATTERN) || file.contains("..")) {
+			throw new ImageNotFoundException(file);
+		}
+		String sha256;
+		if (file.matches(HASH_PATTERN)) {
+			if (!passiService.isImageOwner(file, username)) {
+				throw new ImageNotFoundException(file);
+			}
+			sha256 = file;
+		} else {
+			sha256 = passiService.findImageHash(file, username);
+		}
+		if (sha256 == null) {
+			// Uploaded before the image store, original only, owner known from answers
+			Path legacy = store.getLegacy(file);
+			if (!Files.isRegularFile(legacy) || !passiService.isLegacyImageOwner(file, username)) {
+				throw new ImageNotFoundException(file);
+			}
+			return new ImageFile(legacy, ImageSize.ORIGINAL, null);
+		}
+		Path original = store.get(sha256);
+		if (!Files.isRegularFile(original)) {
+			throw new ImageNotFoundException(file);
+		}
+		if (size != ImageSize.ORIGINAL) {
+			// Content addressed, an existing variant is never stale
+			Path variant = store.getVariant(sha256, size);
+			if (Files.isRegularFile(variant)) {
+				return new ImageFile(variant, size, sha256 + "-" + size.name().toLowerCase());
+			}
+			scheduleVariants(sha256);
+		}
+		return new ImageFile(original, ImageSize.ORIGINAL, sha256);
+	}
+
+	/**
+	 * Delete stored files whose last reference was released more than the
+	 * grace period ago. The grace period lets clients still showing a
+	 * replaced image load it for a while.
+	 */
+	@Scheduled(fixedDelay = (60 * 60 * 1000)) // hourly
+	public void deleteReleasedImages() {
+		int deleted = 0;
+		for (String sha256 : passiService.getReleasedImages(System.currentTimeMillis() - releaseGraceMillis)) {
+			try {
+				if (passiService.deleteReleasedImage(sha256, () -> {
+					try {
+						store.delete(sha256);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				})) {
+					deleted++;
+				}
+			} catch (UncheckedIOException e) {
+				log.warn("deleteReleasedImages() : Could not delete image {}: {}", sha256, e.getCause().toString());
+			}
+		}
+		if (deleted > 0) {
+			log.info("deleteReleasedImages() : Deleted {} unreferenced images", deleted);
+		}
+	}
+
+	// Store the file in the transaction linking the name, an I/O failure rolls the name back
+	private void link(String file, String sha256, long size, String username, Path stored) throws IOException {
+		try {
+			passiService.linkImageName(file, sha256, size, username, () -> {
+				try {
+					store.put(sha256, stored);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void acquireUploadSlot(String file) {
+		try {
+			if (!uploads.tryAcquire(uploadWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw new TooManyUploadsException(file);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TooManyUploadsException(file);
+		}
+	}
+
+	// Queue variant creation unless already queued, never blocks the caller
+	private void scheduleVariants(String sha256) {
+		if (!pendingVariants.add(sha256)) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					Map<ImageSize, Path> targets = new EnumMap<>(ImageSize.class);
+					targets.put(ImageSize.SCREEN, store.getVariant(sha256, ImageSize.SCREEN));
+					targets.put(ImageSize.THUMB, store.getVariant(sha256, ImageSize.THUMB));
+					ImageScaler.createVariants(store.get(sha256), targets);
+					log.debug("scheduleVariants() : Created variants of {}", sha256);
+				} catch (IOException | RuntimeException e) {
+					log.warn("scheduleVariants() : Could not create variants of {}: {}", sha256, e.toString());
+				} finally {
+					pendingVariants.remove(sha256);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pendingVariants.remove(sha256);
+			log.info("scheduleVariants() : Image queue full, variants of {} postponed", sha256);
+		}
+	}
+
+	// Stream request body to file through one reusable buffer, enforcing size limit
+	private String copy(ReadableByteChannel source, FileChannel target, String file) throws IOException {
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long total = 0;
+		while (source.read(buffer) >= 0) {
+			total += buffer.position();
+			if (total > maxBytes) {
+				throw new InvalidImageException(file, "image larger than " + maxBytes + " bytes");
+			}
+			buffer.flip();
+			buffer.mark();
+			digest.update(buffer);
+			buffer.reset();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			buffer.clear();
+		}
+		if (total == 0) {
+			throw new InvalidImageException(file, "empty file");
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	// Copy everything except the given segments, returning SHA-256 of the copy
+	private static String strip(FileChannel source, List<long[]> segments, Path target) throws IOException {
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+			long position = 0;
+			for (long[] segment : segments) {
+				transfer(source, position, segment[0] - position, out, buffer, digest);
+				position = segment[0] + segment[1];
+			}
+			transfer(source, position, source.size() - position, out, buffer, digest);
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	private static void transfer(FileChannel source, long position, long count, FileChannel target,
+			ByteBuffer buffer, MessageDigest digest) throws IOException {
+		while (count > 0) {
+			buffer.clear();
+			if (count < buffer.capacity()) {
+				buffer.limit((int) count);
+			}
+			int read = source.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			position += read;
+			count -= read;
+			buffer.flip();
+			buffer.mark();
+			digest.update(buffer);
+			buffer.reset();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		if (path == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("deleteQuietly() : Could not delete temporary file {}", path);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package fi.softala.ttl.service;
+
+/**
+ * Stored sizes of an uploaded image. Downscaled variants fit inside a square
+ * of the given dimension and keep the aspect ratio.
+ */
+public enum ImageSize {
+
+	THUMB(160), SCREEN(1024), ORIGINAL(0);
+
+	private final int maxDimension;
+
+	private ImageSize(int maxDimension) {
+		this.maxDimension = maxDimension;
+	}
+
+	public int getMaxDimension() {
+		return maxDimension;
+	}
+
+	/**
+	 * Parse size request parameter, case insensitive.
+	 * 
+	 * @param size thumb, screen or original
+	 * @return ImageSize or null if unknown
+	 */
+	public static ImageSize fromParameter(String size) {
+		for (ImageSize candidate : values()) {
+			if (candidate.name().equalsIgnoreCase(size)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+}
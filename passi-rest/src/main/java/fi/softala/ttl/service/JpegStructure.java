@@ -0,0 +1,115 @@
+package fi.softala.ttl.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.softala.ttl.exception.InvalidImageException;
+
+/**
+ * Checks the marker structure of a JPEG file without decoding it: start of
+ * image, well formed segments up to start of scan with a frame header before
+ * it, and end of image at the end of the file. Only segment headers are read.
+ *
+ * Metadata to strip is APP1 (EXIF with GPS, XMP) and comments. APP2 (ICC
+ * colour profile) and APP14 (Adobe colour transform of CMYK / YCCK images)
+ * are needed to show the image right and are kept, as are the other
+ * application segments.
+ */
+final class JpegStructure {
+
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int APP1 = 0xE1;
+	private static final int COM = 0xFE;
+	private static final int MAX_SEGMENTS = 1024;
+
+	private JpegStructure() {
+	}
+
+	/**
+	 * Validate file structure.
+	 * 
+	 * @param channel file to inspect
+	 * @param file name for error messages
+	 * @return List of metadata segments (APP1, COM) as {offset, length}
+	 * @throws InvalidImageException if the file is not a complete JPEG
+	 */
+	static List<long[]> inspect(FileChannel channel, String file) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(4);
+		if (size < 4 || read(channel, header, 0, 2) != 0xFF || (header.get(1) & 0xFF) != SOI) {
+			throw new InvalidImageException(file, "missing JPEG start of image marker");
+		}
+		List<long[]> metadata = new ArrayList<>();
+		boolean frame = false;
+		long position = 2;
+		for (int segments = 0;; segments++) {
+			if (segments > MAX_SEGMENTS || position + 4 > size) {
+				throw new InvalidImageException(file, "truncated JPEG header");
+			}
+			if (read(channel, header, position, 4) != 0xFF) {
+				throw new InvalidImageException(file, "invalid JPEG marker at " + position);
+			}
+			int marker = header.get(1) & 0xFF;
+			if (marker == 0xFF) {
+				// Fill byte before a marker
+				position++;
+				continue;
+			}
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				// Standalone marker without length
+				position += 2;
+				continue;
+			}
+			if (marker == EOI || marker == SOI) {
+				throw new InvalidImageException(file, "JPEG without image data");
+			}
+			int length = ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF);
+			if (length < 2 || position + 2 + length > size) {
+				throw new InvalidImageException(file, "invalid JPEG segment length at " + position);
+			}
+			if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				frame = true;
+			} else if (marker == APP1 || marker == COM) {
+				metadata.add(new long[] { position, 2 + length });
+			} else if (marker == SOS) {
+				if (!frame) {
+					throw new InvalidImageException(file, "JPEG scan without frame header");
+				}
+				position += 2 + length;
+				break;
+			}
+			position += 2 + length;
+		}
+		// Some encoders pad after end of image, look for it near the end
+		int tail = (int) Math.min(64, size - position);
+		if (tail < 2) {
+			throw new InvalidImageException(file, "missing JPEG end of image marker");
+		}
+		ByteBuffer end = ByteBuffer.allocate(tail);
+		read(channel, end, size - tail, tail);
+		for (int i = tail - 2; i >= 0; i--) {
+			if ((end.get(i) & 0xFF) == 0xFF && (end.get(i + 1) & 0xFF) == EOI) {
+				return metadata;
+			}
+		}
+		throw new InvalidImageException(file, "missing JPEG end of image marker");
+	}
+
+	// Read length bytes at position into buffer, return first byte
+	private static int read(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return buffer.get(0) & 0xFF;
+	}
+}
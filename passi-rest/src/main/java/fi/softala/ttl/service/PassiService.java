@@ -6,10 +6,14 @@ import java.util.Map;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import fi.softala.ttl.model.AnswerStatus;
 import fi.softala.ttl.model.Answersheet;
+import fi.softala.ttl.model.AnswersheetResult;
 import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.Home;
 import fi.softala.ttl.model.User;
+import fi.softala.ttl.model.WorksheetCatalogue;
 
 @Service("passiService")
 @Transactional
@@ -17,19 +21,35 @@ public interface PassiService {
 	
 	public List<AuthUser> getAuthUsers();
 	
+	public AuthUser findAuthUser(String username);
+	
 	public boolean addUser(AuthUser user);
 	
 	public User findUser(String username);
+
+	public String findUserVersion(String username);
+
+	public void invalidateUser(String username);
 	
 	public User findUser(String username, String email);
 	
+	public boolean isUserExist(String username, String email);
+	
 	public Map<String, Object> findUsernameAndPassById(int userID);
 	
-	public List<Category> getWorksheets(int groupID, String username);
+	public WorksheetCatalogue getWorksheets(int groupID, String username);
+	
+	public Home getHome(String username);
+	
+	public void invalidateWorksheets(int groupID);
+	
+	public void invalidateAllWorksheets();
 
 	public Answersheet getAnswers(int worksheetID, int groupID, int userID);
 	
-	public boolean saveAnswer(Answersheet answersheet);
+	public AnswerStatus saveAnswer(Answersheet answersheet, String username);
+	
+	public List<AnswersheetResult> saveAnswers(List<Answersheet> answersheets, String username);
 	
 	public boolean deleteAnswer(int worksheetID, int userID);
 	
@@ -45,4 +65,18 @@ public interface PassiService {
 	
 	public boolean isCorrectUser(int userID, String username);
 	
+	public String findImageHash(String name, String username);
+	
+	public boolean isImageNameAvailable(String name, String username);
+	
+	public boolean isImageOwner(String sha256, String username);
+	
+	public boolean isLegacyImageOwner(String name, String username);
+	
+	public void linkImageName(String name, String sha256, long size, String username, Runnable storeFile);
+	
+	public List<String> getReleasedImages(long releasedBeforeMillis);
+	
+	public boolean deleteReleasedImage(String sha256, Runnable deleteFiles);
+	
 }
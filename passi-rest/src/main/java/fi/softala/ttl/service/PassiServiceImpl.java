@@ -1,19 +1,47 @@
 package fi.softala.ttl.service;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.softala.ttl.cache.ExpiringCache;
 import fi.softala.ttl.dao.PassiDAO;
+import fi.softala.ttl.exception.InvalidImageException;
+import fi.softala.ttl.model.AnswerStatus;
 import fi.softala.ttl.model.Answersheet;
+import fi.softala.ttl.model.AnswersheetResult;
 import fi.softala.ttl.model.AuthUser;
 import fi.softala.ttl.model.Category;
+import fi.softala.ttl.model.Group;
+import fi.softala.ttl.model.GroupWorksheets;
+import fi.softala.ttl.model.Home;
 import fi.softala.ttl.model.User;
+import fi.softala.ttl.model.Waypoint;
+import fi.softala.ttl.model.Worksheet;
+import fi.softala.ttl.model.WorksheetCatalogue;
 
 /**
  * @author Mika Ropponen | mika.ropponen@gmail.com
@@ -29,9 +57,26 @@ import fi.softala.ttl.model.User;
 @Transactional(rollbackFor = Exception.class)
 public class PassiServiceImpl implements PassiService {
 
+	private static final Logger log = LoggerFactory.getLogger(PassiServiceImpl.class);
+
 	@Inject
 	private PassiDAO dao;
 
+	// Worksheet catalogues by group ID, completion flags are added per request
+	@Inject
+	private ExpiringCache<Integer, WorksheetCatalogue> worksheetCatalogue;
+
+	// Version stamps of users loaded by findUser() and getHome()
+	@Inject
+	private ExpiringCache<String, String> userVersions;
+
+	// Concurrent reads of findUser(), getWorksheets() and getHome()
+	@Inject
+	private QueryExecutor queryExecutor;
+
+	// Used only to compute content versions of cached catalogues and users
+	private static final ObjectMapper mapper = new ObjectMapper();
+
 	public PassiDAO getDao() {
 		return dao;
 	}
@@ -51,22 +96,92 @@ public class PassiServiceImpl implements PassiService {
 		return dao.getAuthUsers();
 	}
 
+	/**
+	 * Single user (username, BCrypt encoded password) for authentication.
+	 * 
+	 * @param username
+	 * @return AuthUser or null if not found
+	 */
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public AuthUser findAuthUser(String username) {
+		return dao.findAuthUser(username);
+	}
+
 	@Override
 	public boolean addUser(AuthUser user) {
 		return dao.addUser(user);
 	}
 
 	/**
-	 * Lower isolation is used for findUser(). findUser() is not used for
-	 * authentication.
+	 * User, groups and instructors are read concurrently without a common
+	 * transaction. findUser() is not used for authentication.
+	 * 
+	 * The reads are not one snapshot: each query commits on its own, so a
+	 * change committed between them, e.g. a group joined after the profile
+	 * was read, may show in one and not in another.
+	 * 
+	 * The user's version stamp is set and cached for findUserVersion().
 	 * 
 	 * @param username
 	 * @return User
 	 */
 	@Override
-	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public User findUser(String username) {
-		return dao.findUser(username);
+		CompletableFuture<User> user = queryExecutor.submit(() -> dao.findUserProfile(username));
+		CompletableFuture<List<Group>> groups = queryExecutor.submit(() -> dao.getUserGroups(username));
+		CompletableFuture<Map<String, List<User>>> instructors = queryExecutor.submit(() -> dao.getGroupInstructors(username));
+		queryExecutor.await(user, groups, instructors);
+		return withVersion(username, withGroups(user.join(), groups.join(), instructors.join()));
+	}
+
+	/**
+	 * Version stamp of the user as last loaded by findUser() or getHome(),
+	 * without database access. Stamps expire after cache.users.ttlSeconds, so
+	 * changes made outside passi-rest are noticed within it.
+	 * 
+	 * @param username
+	 * @return String version or null if not loaded recently
+	 */
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public String findUserVersion(String username) {
+		return userVersions.getIfPresent(username);
+	}
+
+	/**
+	 * Drop the version stamp of a user whose groups changed, the next
+	 * findUser() loads the user again.
+	 * 
+	 * @param username
+	 */
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public void invalidateUser(String username) {
+		userVersions.invalidate(username);
+	}
+
+	// Set and cache version stamp of a loaded user
+	private User withVersion(String username, User user) {
+		if (user != null) {
+			user.setVersion(userVersion(user));
+			userVersions.put(username, user.getVersion());
+		}
+		return user;
+	}
+
+	// Set groups with their instructors to user, null if user not found
+	private static User withGroups(User user, List<Group> groups, Map<String, List<User>> instructors) {
+		if (user == null) {
+			return null;
+		}
+		for (Group group : groups) {
+			List<User> groupInstructors = instructors.get(group.getGroupID());
+			group.setGroupInstructors(groupInstructors != null ? groupInstructors : new ArrayList<>());
+		}
+		user.setGroups(groups);
+		return user;
 	}
 	
 	@Override
@@ -76,15 +191,172 @@ public class PassiServiceImpl implements PassiService {
 	}
 
 	/**
-	 * Get worksheets of a group sorted in categories
+	 * Lightweight duplicate check for registration, does not load groups or
+	 * instructors.
 	 * 
-	 * @param groupID
-	 * @return List<Category> including worksheets, waypoints, options
+	 * @param username
+	 * @param email
+	 * @return boolean
 	 */
 	@Override
 	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
-	public List<Category> getWorksheets(int groupID, String username) {
-		return dao.getWorksheets(groupID, username);
+	public boolean isUserExist(String username, String email) {
+		return dao.isUserExist(username, email);
+	}
+
+	/**
+	 * Get worksheets of a group sorted in categories. Worksheet content is
+	 * served from the catalogue cache, only completion flags are queried. On a
+	 * cache miss the catalogue is loaded concurrently with the flags.
+	 * 
+	 * The version stamp changes when the group's catalogue or the user's
+	 * completed worksheets change, it is derived from the data loaded here.
+	 * 
+	 * @param groupID
+	 * @return WorksheetCatalogue with categories including worksheets,
+	 * waypoints, options and the user's completion flags
+	 */
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public WorksheetCatalogue getWorksheets(int groupID, String username) {
+		CompletableFuture<WorksheetCatalogue> catalogue = catalogue(groupID);
+		CompletableFuture<Set<Integer>> completed = queryExecutor.submit(() -> dao.getCompletedWorksheets(groupID, username));
+		queryExecutor.await(catalogue, completed);
+		return new WorksheetCatalogue(withCompletion(catalogue.join().getCategories(), completed.join()),
+				worksheetsVersion(catalogue.join(), completed.join()));
+	}
+
+	// Version stamp of a catalogue with a user's completed worksheets
+	private static String worksheetsVersion(WorksheetCatalogue catalogue, Set<Integer> completed) {
+		List<Integer> sorted = new ArrayList<>(completed);
+		Collections.sort(sorted);
+		return DigestUtils.md5Hex(catalogue.getVersion() + sorted);
+	}
+
+	/**
+	 * Home screen of a user: user with groups and instructors, progress, and
+	 * worksheets with completion and feedback state of every group. Feedback
+	 * and completion of all groups come from one query, worksheet content
+	 * from the catalogue cache. The queries run concurrently, catalogues
+	 * missing from the cache are loaded concurrently after them. Progress is
+	 * counted from the feedback rows and catalogues of the member groups.
+	 * 
+	 * The version stamp is derived from the catalogue versions, the user's
+	 * feedback rows and the user with groups and instructors, so the large
+	 * worksheet content is never serialized to compute it.
+	 * 
+	 * The reads are not one snapshot, as in findUser(): an answer saved or
+	 * feedback completed while they run may show in the feedback rows of a
+	 * group the user did not yet belong to when the groups were read. The
+	 * next request sees both.
+	 * 
+	 * @param username
+	 * @return Home or null if user not found
+	 */
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public Home getHome(String username) {
+		CompletableFuture<User> user = queryExecutor.submit(() -> dao.findUserProfile(username));
+		CompletableFuture<List<Group>> userGroups = queryExecutor.submit(() -> dao.getUserGroups(username));
+		CompletableFuture<Map<String, List<User>>> instructors = queryExecutor.submit(() -> dao.getGroupInstructors(username));
+		CompletableFuture<Map<Integer, Map<Integer, Integer>>> feedback = queryExecutor
+				.submit(() -> dao.getFeedbackCompleteMaps(username));
+		queryExecutor.await(user, userGroups, instructors, feedback);
+		if (user.join() == null) {
+			return null;
+		}
+		withVersion(username, withGroups(user.join(), userGroups.join(), instructors.join()));
+
+		List<CompletableFuture<WorksheetCatalogue>> catalogues = new ArrayList<>();
+		for (Group group : user.join().getGroups()) {
+			catalogues.add(catalogue(Integer.parseInt(group.getGroupID())));
+		}
+		queryExecutor.await(catalogues.toArray(new CompletableFuture<?>[catalogues.size()]));
+		List<GroupWorksheets> groups = new ArrayList<>(catalogues.size());
+		StringBuilder version = new StringBuilder(user.join().getVersion());
+		long completed = 0;
+		for (int i = 0; i < catalogues.size(); i++) {
+			String groupID = user.join().getGroups().get(i).getGroupID();
+			Map<Integer, Integer> feedbackComplete = feedback.join().get(Integer.parseInt(groupID));
+			if (feedbackComplete == null) {
+				feedbackComplete = new HashMap<>();
+			}
+			completed += feedbackComplete.size();
+			groups.add(new GroupWorksheets(groupID,
+					withCompletion(catalogues.get(i).join().getCategories(), feedbackComplete.keySet()), feedbackComplete));
+			version.append(groupID).append(catalogues.get(i).join().getVersion()).append(new TreeMap<>(feedbackComplete));
+		}
+		return new Home(user.join(), progress(completed, catalogues), groups, DigestUtils.md5Hex(version.toString()));
+	}
+
+	// Version stamp of a user with groups and instructors
+	private static String userVersion(User user) {
+		try {
+			return DigestUtils.md5Hex(mapper.writeValueAsBytes(user));
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException("Could not compute version of user " + user.getUsername(), e);
+		}
+	}
+
+	// Cached catalogue, or its load on the query executor
+	private CompletableFuture<WorksheetCatalogue> catalogue(int groupID) {
+		WorksheetCatalogue cached = worksheetCatalogue.getIfPresent(groupID);
+		return cached != null ? CompletableFuture.completedFuture(cached) : queryExecutor.submit(() -> getCatalogue(groupID));
+	}
+
+	private WorksheetCatalogue getCatalogue(int groupID) {
+		return worksheetCatalogue.get(groupID, () -> {
+			List<Category> categories = freeze(dao.getWorksheetCatalogue(groupID));
+			try {
+				return new WorksheetCatalogue(categories, DigestUtils.md5Hex(mapper.writeValueAsBytes(categories)));
+			} catch (JsonProcessingException e) {
+				throw new IllegalStateException("Could not compute version of worksheet catalogue " + groupID, e);
+			}
+		});
+	}
+
+	/**
+	 * Drop cached worksheet catalogue of a group, next request reloads it
+	 * 
+	 * @param groupID
+	 */
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public void invalidateWorksheets(int groupID) {
+		worksheetCatalogue.invalidate(groupID);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public void invalidateAllWorksheets() {
+		worksheetCatalogue.invalidateAll();
+	}
+
+	// Make shared parts of a cached catalogue read-only
+	private static List<Category> freeze(List<Category> categories) {
+		for (Category category : categories) {
+			for (Worksheet worksheet : category.getCategoryWorksheets()) {
+				for (Waypoint waypoint : worksheet.getWorksheetWaypoints()) {
+					waypoint.setWaypointOptions(Collections.unmodifiableList(waypoint.getWaypointOptions()));
+				}
+				worksheet.setWorksheetWaypoints(Collections.unmodifiableList(worksheet.getWorksheetWaypoints()));
+			}
+		}
+		return Collections.unmodifiableList(categories);
+	}
+
+	// Copy categories and worksheets of a cached catalogue with user's completion flags, waypoints are shared
+	private static List<Category> withCompletion(List<Category> catalogue, Set<Integer> completed) {
+		List<Category> categories = new ArrayList<>(catalogue.size());
+		for (Category cached : catalogue) {
+			ArrayList<Worksheet> worksheets = new ArrayList<>(cached.getCategoryWorksheets().size());
+			for (Worksheet w : cached.getCategoryWorksheets()) {
+				worksheets.add(new Worksheet(w.getWorksheetID(), w.getWorksheetHeader(), w.getWorksheetPreface(),
+						w.getWorksheetPlanning(), w.getWorksheetWaypoints(), completed.contains(w.getWorksheetID())));
+			}
+			categories.add(new Category(cached.getCategoryID(), cached.getCategoryName(), worksheets));
+		}
+		return categories;
 	}
 
 	/**
@@ -115,30 +387,115 @@ public class PassiServiceImpl implements PassiService {
 	}
 
 	/**
-	 * Save answers of one worksheet. Exceptions and rollback handled locally in
-	 * PassiDAOImpl.saveAnswer() method.
+	 * Save answers of one worksheet in one transaction. Ownership is checked by
+	 * the insert itself and a second answer is refused by the unique key on
+	 * (worksheet_id, user_id), so concurrent retries cannot both succeed.
+	 * Nothing is written unless the result is CREATED: a duplicate key or other
+	 * failure rolls back the whole transaction, answerpoints and progress
+	 * included.
 	 * 
 	 * @param answersheet
-	 * @return boolean (success or not)
+	 * @param username signed in user
+	 * @return AnswerStatus CREATED, INVALID_USER, ALREADY_ANSWERED or FAILED
+	 */
+	@Override
+	@Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
+	public AnswerStatus saveAnswer(Answersheet answersheet, String username) {
+		try {
+			if (!dao.saveAnswer(answersheet, username)) {
+				return AnswerStatus.INVALID_USER;
+			}
+			return AnswerStatus.CREATED;
+		} catch (DuplicateKeyException e) {
+			// Statements before the failed one must not commit either
+			TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+			return AnswerStatus.ALREADY_ANSWERED;
+		} catch (DataAccessException e) {
+			log.warn("saveAnswer() : Saving answersheet of {} failed: {}", username, e.toString());
+			TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+			return AnswerStatus.FAILED;
+		}
+	}
+
+	/**
+	 * Save answersheets of the signed in user at once. Ownership and earlier
+	 * answers are checked for the whole list with one query each and all
+	 * accepted sheets are written in this transaction. If writing fails, none
+	 * of them is saved.
+	 * 
+	 * @param answersheets from the client, possibly collected offline
+	 * @param username signed in user
+	 * @return List of AnswersheetResult in the order of answersheets
 	 */
 	@Override
 	@Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
-	public boolean saveAnswer(Answersheet answersheet) {
-		return dao.saveAnswer(answersheet);
+	public List<AnswersheetResult> saveAnswers(List<Answersheet> answersheets, String username) {
+		List<AnswersheetResult> results = new ArrayList<>();
+		Integer userID = dao.findUserID(username);
+		Set<Integer> worksheetIDs = new HashSet<>();
+		for (Answersheet answersheet : answersheets) {
+			if (userID != null && answersheet.getUserID() == userID) {
+				worksheetIDs.add(answersheet.getWorksheetID());
+			}
+		}
+		Set<Integer> answered = userID != null ? dao.getAnsweredWorksheets(userID, worksheetIDs) : worksheetIDs;
+
+		List<Answersheet> accepted = new ArrayList<>();
+		for (Answersheet answersheet : answersheets) {
+			AnswerStatus status;
+			if (userID == null || answersheet.getUserID() != userID) {
+				status = AnswerStatus.INVALID_USER;
+			} else if (!answered.add(answersheet.getWorksheetID())) {
+				// Answered before or earlier in this list
+				status = AnswerStatus.ALREADY_ANSWERED;
+			} else {
+				status = AnswerStatus.CREATED;
+				accepted.add(answersheet);
+			}
+			results.add(new AnswersheetResult(answersheet.getWorksheetID(), answersheet.getUserID(), 0, status));
+		}
+
+		try {
+			dao.saveAnswers(userID != null ? userID : 0, accepted);
+		} catch (DataAccessException e) {
+			log.warn("saveAnswers() : Saving {} answersheets of {} failed: {}", accepted.size(), username, e.toString());
+			TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+			for (AnswersheetResult result : results) {
+				if (result.getStatus() == AnswerStatus.CREATED) {
+					result.setStatus(AnswerStatus.FAILED);
+				}
+			}
+			return results;
+		}
+		for (int i = 0, j = 0; i < results.size(); i++) {
+			if (results.get(i).getStatus() == AnswerStatus.CREATED) {
+				results.get(i).setAnswersheetID(accepted.get(j++).getAnswersheetID());
+			}
+		}
+		return results;
 	}
 
 	/**
-	 * Delete answers of one worksheet. Exceptions and rollback handled locally
-	 * in PassiDAOImpl.saveAnswer() method.
+	 * Delete answers of one worksheet in one transaction. Upload names no
+	 * other answer refers to are removed and their images released. If a
+	 * statement fails, the whole transaction is rolled back and nothing is
+	 * deleted.
 	 * 
 	 * @param worksheetID
 	 * @param userID
 	 * @return boolean (success or not)
 	 */
 	@Override
-	@Transactional(readOnly = true, isolation = Isolation.SERIALIZABLE)
+	@Transactional(readOnly = false, isolation = Isolation.SERIALIZABLE)
 	public boolean deleteAnswer(int worksheetID, int userID) {
-		return dao.deleteAnswer(worksheetID, userID);
+		try {
+			dao.deleteAnswer(worksheetID, userID);
+			return true;
+		} catch (DataAccessException e) {
+			log.warn("deleteAnswer() : Deleting answersheet {} of user {} failed: {}", worksheetID, userID, e.toString());
+			TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+			return false;
+		}
 	}
 
 	@Override
@@ -159,10 +516,43 @@ public class PassiServiceImpl implements PassiService {
 		return dao.feedbackCompleteMap(groupID, userID);
 	}
 	
+	/**
+	 * Answered and distributed worksheets summed over the user's groups. The
+	 * answered counts come from the progress summary, the totals from the
+	 * catalogue cache; catalogues missing from it are loaded concurrently.
+	 * 
+	 * @param username
+	 * @return Map with completed and total, empty if the user has no groups
+	 */
 	@Override
-	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public Map<String, Long> getProgress(String username) {
-		return dao.getProgress(username);
+		Map<Integer, Long> answered = dao.getAnsweredCounts(username);
+		List<CompletableFuture<WorksheetCatalogue>> catalogues = new ArrayList<>();
+		for (int groupID : answered.keySet()) {
+			catalogues.add(catalogue(groupID));
+		}
+		queryExecutor.await(catalogues.toArray(new CompletableFuture<?>[catalogues.size()]));
+		if (answered.isEmpty()) {
+			return new HashMap<>();
+		}
+		long completed = 0;
+		for (long count : answered.values()) {
+			completed += count;
+		}
+		return progress(completed, catalogues);
+	}
+
+	// Progress as sent to clients, the total from cached catalogues
+	private static Map<String, Long> progress(long completed, List<CompletableFuture<WorksheetCatalogue>> catalogues) {
+		long total = 0;
+		for (CompletableFuture<WorksheetCatalogue> catalogue : catalogues) {
+			total += catalogue.join().countWorksheets();
+		}
+		Map<String, Long> progress = new HashMap<>();
+		progress.put("completed", completed);
+		progress.put("total", total);
+		return progress;
 	}
 	
 	@Override
@@ -176,4 +566,97 @@ public class PassiServiceImpl implements PassiService {
 	public Map<String, Object> findUsernameAndPassById(int userID) {
 		return dao.findUsernameAndPassById(userID);
 	}
+	
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public String findImageHash(String name, String username) {
+		return dao.findImageHash(name, username);
+	}
+	
+	// Early check before receiving an upload, linkImageName decides
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public boolean isImageNameAvailable(String name, String username) {
+		String owner = dao.findImageOwner(name);
+		return owner == null || owner.equals(username);
+	}
+	
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public boolean isImageOwner(String sha256, String username) {
+		return dao.isImageOwner(sha256, username);
+	}
+	
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public boolean isLegacyImageOwner(String name, String username) {
+		return dao.isLegacyImageOwner(name, username);
+	}
+	
+	/**
+	 * Point upload name to stored image, moving the reference from the image
+	 * it pointed to before. A name belongs to the user who uploaded it first;
+	 * names without owner (uploaded before owners were recorded and not in
+	 * any answer) are taken over.
+	 * 
+	 * The file is stored inside the transaction once the image row is
+	 * referenced (and locked), so deleteReleasedImage() cannot remove it
+	 * afterwards, and a failed store rolls the name back instead of leaving
+	 * it pointing at a missing file.
+	 * 
+	 * @param name upload name without extension
+	 * @param sha256 hash of stored image
+	 * @param size stored size in bytes
+	 * @param username uploading user
+	 * @param storeFile stores the file, a runtime exception rolls back
+	 * @throws InvalidImageException if the name belongs to another user
+	 */
+	@Override
+	@Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
+	public void linkImageName(String name, String sha256, long size, String username, Runnable storeFile) {
+		Map<String, Object> previous = dao.lockImageName(name);
+		String previousHash = previous != null ? (String) previous.get("sha256") : null;
+		Object owner = previous != null ? previous.get("username") : null;
+		if (owner != null && !username.equals(owner)) {
+			throw new InvalidImageException(name, "name is used by another user");
+		}
+		if (!sha256.equals(previousHash)) {
+			dao.addImageReference(sha256, size);
+		}
+		storeFile.run();
+		if (sha256.equals(previousHash) && owner != null) {
+			return;
+		}
+		dao.saveImageName(name, sha256, username);
+		if (previousHash != null && !sha256.equals(previousHash)) {
+			dao.releaseImageReference(previousHash);
+		}
+	}
+	
+	@Override
+	@Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+	public List<String> getReleasedImages(long releasedBeforeMillis) {
+		return dao.getReleasedImages(new Timestamp(releasedBeforeMillis));
+	}
+	
+	/**
+	 * Delete image without references. The files are deleted while the row is
+	 * locked, so an upload of the same content linking it again either waits
+	 * and stores the file after this, or has already taken a reference and
+	 * the image is kept.
+	 * 
+	 * @param sha256 hash of stored image
+	 * @param deleteFiles removes the stored files, a runtime exception keeps
+	 * the row for the next run
+	 * @return true if the image was deleted
+	 */
+	@Override
+	@Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
+	public boolean deleteReleasedImage(String sha256, Runnable deleteFiles) {
+		if (!dao.lockReleasedImage(sha256)) {
+			return false;
+		}
+		deleteFiles.run();
+		return dao.deleteReleasedImage(sha256);
+	}
 }
@@ -0,0 +1,132 @@
+package fi.softala.ttl.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.dao.QueryTimeoutException;
+
+import fi.softala.ttl.metrics.SqlMetrics;
+
+/**
+ * Runs independent reads of one request concurrently. Each query runs on its
+ * own pooled connection outside the caller's transaction, so callers must not
+ * hold a connection while they wait: service methods fanning out use
+ * Propagation.NOT_SUPPORTED, and the transaction manager synchronizes only
+ * actual transactions, so a query run on the calling thread returns its
+ * connection when it completes instead of when the service method returns.
+ *
+ * The pool is bounded and sized below the connection pool, see
+ * ApplicationConfiguration. When all workers are busy and the queue is full
+ * the query runs on the calling thread. Without a pool every query runs on
+ * the calling thread. With virtual threads every query starts its own.
+ *
+ * Queries are counted to the request that submitted them in SqlMetrics.
+ */
+public class QueryExecutor {
+
+	private final ExecutorService executor;
+	private final long timeoutMillis;
+	private final SqlMetrics sqlMetrics;
+
+	/**
+	 * @param executor workers, null to run queries on the calling thread
+	 * @param timeoutMillis longest wait for the queries of one await()
+	 * @param sqlMetrics per-request query counts
+	 */
+	public QueryExecutor(ExecutorService executor, long timeoutMillis, SqlMetrics sqlMetrics) {
+		this.executor = executor;
+		this.timeoutMillis = timeoutMillis;
+		this.sqlMetrics = sqlMetrics;
+	}
+
+	/**
+	 * Start a query. Cancelling the returned future cancels the query if it has
+	 * not started and interrupts its worker otherwise.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> query) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		AtomicInteger requestQueries = sqlMetrics.getRequestQueries();
+		Runnable task = () -> {
+			if (result.isDone()) {
+				return;
+			}
+			AtomicInteger previous = sqlMetrics.setRequestQueries(requestQueries);
+			try {
+				result.complete(query.get());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				sqlMetrics.setRequestQueries(previous);
+			}
+		};
+		if (executor == null) {
+			task.run();
+			return result;
+		}
+		Future<?> future = executor.submit(task);
+		result.whenComplete((value, e) -> {
+			if (result.isCancelled()) {
+				future.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Wait for queries to complete. If one fails or the timeout passes, the
+	 * rest are cancelled.
+	 *
+	 * @throws QueryTimeoutException if the queries did not complete in time
+	 * @throws RuntimeException the failure of the first failed query
+	 */
+	public void await(CompletableFuture<?>... queries) {
+		// allOf() waits for every query even after one has failed
+		CompletableFuture<Void> failed = new CompletableFuture<>();
+		for (CompletableFuture<?> query : queries) {
+			query.whenComplete((value, e) -> {
+				if (e != null) {
+					failed.completeExceptionally(e);
+				}
+			});
+		}
+		try {
+			CompletableFuture.anyOf(CompletableFuture.allOf(queries), failed).get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			cancel(queries);
+			throw new QueryTimeoutException("Queries did not complete in " + timeoutMillis + " ms", e);
+		} catch (InterruptedException e) {
+			cancel(queries);
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting for queries");
+		} catch (ExecutionException e) {
+			cancel(queries);
+			Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Query failed", cause);
+		}
+	}
+
+	private static void cancel(CompletableFuture<?>... queries) {
+		for (CompletableFuture<?> query : queries) {
+			query.cancel(true);
+		}
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
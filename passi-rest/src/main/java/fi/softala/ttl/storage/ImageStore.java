@@ -0,0 +1,26 @@
+package fi.softala.ttl.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import fi.softala.ttl.service.ImageSize;
+
+/**
+ * File storage of uploaded images, addressed by SHA-256 of content. Knows
+ * nothing about upload names or reference counts, see ImageService.
+ */
+public interface ImageStore {
+	
+	public Path createTempFile() throws IOException;
+	
+	public void put(String sha256, Path temp) throws IOException;
+	
+	public Path get(String sha256);
+	
+	public Path getVariant(String sha256, ImageSize size);
+	
+	public Path getLegacy(String name);
+	
+	public void delete(String sha256) throws IOException;
+	
+}
@@ -0,0 +1,97 @@
+package fi.softala.ttl.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import fi.softala.ttl.service.ImageSize;
+
+/**
+ * Image files under images.path in two levels of shard directories taken from
+ * the hash, e.g. store/3f/a2/3fa2...e1.jpg, so that no directory grows beyond
+ * a few hundred entries. Downscaled variants use the same layout under
+ * thumb/ and screen/. Files uploaded before the store are found flat in the
+ * root directory by upload name.
+ */
+@Component("imageStore")
+public class ShardedImageStore implements ImageStore {
+
+	private static final String HASH_PATTERN = "^[0-9a-f]{64}$";
+
+	private final Path root;
+	private final Path temp;
+
+	@Inject
+	public ShardedImageStore(Environment env) {
+		this.root = Paths.get(env.getProperty("images.path",
+				System.getProperty("catalina.home") + File.separator + "images"));
+		this.temp = root.resolve("tmp");
+	}
+
+	/**
+	 * Temporary file on the same file system as the store, so that put() is a
+	 * rename.
+	 */
+	@Override
+	public Path createTempFile() throws IOException {
+		Files.createDirectories(temp);
+		return Files.createTempFile(temp, "upload-", ".part");
+	}
+
+	/**
+	 * Move finished file into the store. Content of an existing file with the
+	 * same hash is identical, replacing it is harmless.
+	 * 
+	 * @param sha256 lower case hex digest
+	 * @param file temporary file, moved away
+	 */
+	@Override
+	public void put(String sha256, Path file) throws IOException {
+		Path target = get(sha256);
+		Files.createDirectories(target.getParent());
+		Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public Path get(String sha256) {
+		return shard(root.resolve("store"), sha256);
+	}
+
+	@Override
+	public Path getVariant(String sha256, ImageSize size) {
+		if (size == ImageSize.ORIGINAL) {
+			return get(sha256);
+		}
+		return shard(root.resolve(size.name().toLowerCase()), sha256);
+	}
+
+	@Override
+	public Path getLegacy(String name) {
+		return root.resolve(name + ".jpg");
+	}
+
+	/**
+	 * Remove file and its variants.
+	 */
+	@Override
+	public void delete(String sha256) throws IOException {
+		for (ImageSize size : ImageSize.values()) {
+			Files.deleteIfExists(getVariant(sha256, size));
+		}
+	}
+
+	private static Path shard(Path base, String sha256) {
+		if (!sha256.matches(HASH_PATTERN)) {
+			throw new IllegalArgumentException("Not a SHA-256 hex digest: " + sha256);
+		}
+		return base.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256 + ".jpg");
+	}
+}